@@ -0,0 +1,212 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Watches a directory tree for new, changed and deleted text files and keeps
+ * the index up to date through a {@link ThreadSafeInvertedIndexBuilder}.
+ * Events are collected until the tree has been quiet for the debounce time,
+ * or until the oldest event has waited the maximum lag, and then dispatched as
+ * one batch with repeated events for the same path coalesced. Searches see a
+ * change within roughly the maximum lag plus the time to re-index the file.
+ *
+ * @author angelarichards261
+ */
+public class DirectoryWatcher implements Runnable, Closeable {
+
+	/** Default time the tree must be quiet before a batch is dispatched */
+	public static final long DEFAULT_DEBOUNCE = 250;
+
+	/** Default longest an event waits before its batch is dispatched */
+	public static final long DEFAULT_MAX_LAG = 2000;
+
+	/** Logger for dispatched batches */
+	private static final Logger log = LogManager.getLogger();
+
+	/** The root of the watched tree */
+	private final Path root;
+
+	/** Re-indexes changed paths */
+	private final ThreadSafeInvertedIndexBuilder builder;
+
+	/** The watch service every directory is registered with */
+	private final WatchService watcher;
+
+	/** The directory each registration key belongs to */
+	private final Map<WatchKey, Path> directories;
+
+	/** Milliseconds the tree must be quiet before a batch is dispatched */
+	private final long debounce;
+
+	/** Longest an event waits before its batch is dispatched, in milliseconds */
+	private final long maxLag;
+
+	/** Paths changed since the last batch, in the order first seen */
+	private final LinkedHashSet<Path> pending;
+
+	/**
+	 * Starts watching a tree with the default debounce time and maximum lag
+	 * @param root the root of the tree
+	 * @param builder re-indexes changed paths
+	 * @throws IOException if unable to register the tree
+	 */
+	public DirectoryWatcher(Path root, ThreadSafeInvertedIndexBuilder builder) throws IOException {
+		this(root, builder, DEFAULT_DEBOUNCE, DEFAULT_MAX_LAG);
+	}
+
+	/**
+	 * Starts watching a tree
+	 * @param root the root of the tree
+	 * @param builder re-indexes changed paths
+	 * @param debounce milliseconds the tree must be quiet before a batch is dispatched
+	 * @param maxLag longest an event waits before its batch is dispatched, in milliseconds
+	 * @throws IOException if unable to register the tree
+	 */
+	public DirectoryWatcher(Path root, ThreadSafeInvertedIndexBuilder builder, long debounce, long maxLag) throws IOException {
+		this.root = root;
+		this.builder = builder;
+		this.watcher = root.getFileSystem().newWatchService();
+		this.directories = new HashMap<>();
+		this.debounce = debounce;
+		this.maxLag = Math.max(debounce, maxLag);
+		this.pending = new LinkedHashSet<>();
+		register(root);
+	}
+
+	/**
+	 * Registers a directory and every directory under it
+	 * @param directory the directory
+	 * @throws IOException if unable to register a directory
+	 */
+	private void register(Path directory) throws IOException {
+		if(!Files.isDirectory(directory)) {
+			return;
+		}
+
+		try(Stream<Path> subPaths = Files.walk(directory, FileVisitOption.FOLLOW_LINKS)) {
+			var iterator = subPaths.iterator();
+			while(iterator.hasNext()) {
+				Path next = iterator.next();
+				if(Files.isDirectory(next)) {
+					WatchKey key = next.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+							StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+					directories.put(key, next);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Watches until closed, dispatching a batch whenever the tree goes quiet or
+	 * the oldest pending event reaches the maximum lag
+	 */
+	@Override
+	public void run() {
+		long first = 0;
+		long last = 0;
+
+		try {
+			while(true) {
+				WatchKey key;
+
+				if(pending.isEmpty()) {
+					key = watcher.take();
+				}
+				else {
+					long now = System.currentTimeMillis();
+					long wait = Math.min(last + debounce, first + maxLag) - now;
+					key = wait > 0 ? watcher.poll(wait, TimeUnit.MILLISECONDS) : null;
+				}
+
+				if(key != null) {
+					long now = System.currentTimeMillis();
+					if(pending.isEmpty()) {
+						first = now;
+					}
+					last = now;
+					collect(key);
+				}
+				else {
+					dispatch();
+				}
+			}
+		}
+		catch(InterruptedException | ClosedWatchServiceException e) {
+			// closed, so stop watching
+		}
+	}
+
+	/**
+	 * Adds the paths changed in one directory to the pending batch, and
+	 * registers any new directories
+	 * @param key the key of the directory
+	 */
+	private void collect(WatchKey key) {
+		Path directory = directories.get(key);
+
+		for(WatchEvent<?> event : key.pollEvents()) {
+			if(event.kind() == StandardWatchEventKinds.OVERFLOW) {
+				// events were lost, so re-index the whole tree
+				pending.add(root);
+				continue;
+			}
+
+			Path path = directory.resolve((Path) event.context());
+
+			if(event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(path)) {
+				try {
+					register(path);
+				}
+				catch(IOException e) {
+					System.out.println("Unable to watch " + path);
+				}
+				pending.add(path);
+			}
+			else if(InvertedIndexBuilder.hasTextExtension(path) || directories.containsValue(path)) {
+				pending.add(path);
+			}
+		}
+
+		if(!key.reset()) {
+			directories.remove(key);
+		}
+	}
+
+	/**
+	 * Sends every pending path to the builder as one batch
+	 */
+	private void dispatch() {
+		log.debug("Dispatching {} changed paths", pending.size());
+
+		Iterator<Path> iterator = pending.iterator();
+		while(iterator.hasNext()) {
+			builder.update(iterator.next());
+			iterator.remove();
+		}
+	}
+
+	/**
+	 * Stops watching. Events not yet dispatched are dropped.
+	 * @throws IOException if unable to close the watch service
+	 */
+	@Override
+	public void close() throws IOException {
+		watcher.close();
+	}
+}
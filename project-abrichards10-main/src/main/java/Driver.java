@@ -101,6 +101,83 @@ public class Driver {
 	 */
 	private static final String SERVER_FLAG = "-server";
 	
+	/**
+	 * Profile flag, reports lock contention on the thread-safe index
+	 */
+	private static final String PROFILE_FLAG = "-profile";
+	
+	/**
+	 * Memory flag, builds the index within the given number of megabytes by
+	 * spilling sorted runs to disk
+	 */
+	private static final String MEMORY_FLAG = "-memory";
+	
+	/**
+	 * If the memory budget is missing or invalid, default to 256 megabytes
+	 */
+	private static final int DEFAULT_MEMORY = 256;
+	
+	/**
+	 * Segments flag, keeps the thread-safe index as sealed segments that are
+	 * merged in the background
+	 */
+	private static final String SEGMENTS_FLAG = "-segments";
+	
+	/**
+	 * Incremental flag, re-indexes only files changed since the last run
+	 */
+	private static final String INCREMENTAL_FLAG = "-incremental";
+	
+	/**
+	 * Incremental flag default, the directory holding the manifest and saved index
+	 */
+	private static final Path INCREMENTAL_DEFAULT = Path.of("index-cache");
+	
+	/**
+	 * Watch flag, re-indexes files in the -text directory as they change
+	 */
+	private static final String WATCH_FLAG = "-watch";
+	
+	/**
+	 * Pipeline flag, builds the index with separate reading, stemming and
+	 * indexing threads, optionally given as readers,stemmers,indexers
+	 */
+	private static final String PIPELINE_FLAG = "-pipeline";
+	
+	/**
+	 * Stream flag, writes the query results within the given number of
+	 * megabytes by spilling sorted runs to disk
+	 */
+	private static final String STREAM_FLAG = "-stream";
+	
+	/**
+	 * If the results budget is missing or invalid, default to 64 megabytes
+	 */
+	private static final int DEFAULT_STREAM = 64;
+	
+	/**
+	 * Cache flag, answers repeated searches from a cache holding up to the
+	 * given number of results
+	 */
+	private static final String CACHE_FLAG = "-cache";
+	
+	/**
+	 * If the cache size is missing or invalid, default to this many results
+	 */
+	private static final int DEFAULT_CACHE = 1 << 18;
+	
+	/**
+	 * Load flag, reads an index written by -index back in instead of
+	 * rebuilding it from the files
+	 */
+	private static final String LOAD_FLAG = "-load";
+	
+	/**
+	 * Load counts flag, reads the word counts written by -counts along with
+	 * the loaded index instead of counting them again
+	 */
+	private static final String LOAD_COUNTS_FLAG = "-loadcounts";
+	
 	/** The hard-coded port to run this server. */
 	public static final int PORT = 8080;
 	
@@ -131,8 +208,14 @@ public class Driver {
 		
 		/** Servlet Stuff*/
 		SearchServlet servlet;
+		
+		/** Keeps the index up to date with the -text directory */
+		DirectoryWatcher watcher = null;
+		
+		/** Answers repeated searches, or null */
+		SearchCache cache = null;
 				
-		if(argument.hasFlag(THREADS_FLAG) || argument.hasFlag(HTML_FLAG) || argument.hasFlag(SERVER_FLAG)) {
+		if(argument.hasFlag(THREADS_FLAG) || argument.hasFlag(HTML_FLAG) || argument.hasFlag(SERVER_FLAG) || argument.hasFlag(WATCH_FLAG)) {
 			log.info(argument);
 		
 			try {
@@ -148,6 +231,11 @@ public class Driver {
 			}
 			
 			queue = new WorkQueue(threads);
+			
+			// a watched index is updated while it is searched, so it keeps the updates in small segments
+			if(argument.hasFlag(SEGMENTS_FLAG) || argument.hasFlag(WATCH_FLAG)) {
+				threadSafe = new SegmentedInvertedIndex(queue);
+			}
 			invertedIndex = threadSafe;
 			indexBuilder = new ThreadSafeInvertedIndexBuilder(threadSafe, queue);
 			query = new ThreadSafeQueryParseFile(threadSafe, queue);
@@ -160,6 +248,109 @@ public class Driver {
 			crawler = null;
 		}
 		
+		if(argument.hasFlag(CACHE_FLAG)) {
+			int size;
+			
+			try {
+				size = Integer.parseInt(argument.getString(CACHE_FLAG, String.valueOf(DEFAULT_CACHE)));
+				
+				if(size <= 0) {
+					size = DEFAULT_CACHE;
+				}
+			}
+			catch(NumberFormatException e) {
+				System.out.println("NumberFormatException");
+				size = DEFAULT_CACHE;
+			}
+			
+			cache = new SearchCache(invertedIndex, size);
+			query = queue != null ? new ThreadSafeQueryParseFile(threadSafe, queue, cache) : new QueryParseFile(invertedIndex, cache);
+		}
+		
+		if(argument.hasFlag(MEMORY_FLAG)) {
+			int memory;
+			
+			try {
+				memory = Integer.parseInt(argument.getString(MEMORY_FLAG, String.valueOf(DEFAULT_MEMORY)));
+				
+				if(memory <= 0) {
+					memory = DEFAULT_MEMORY;
+				}
+			}
+			catch(NumberFormatException e) {
+				System.out.println("NumberFormatException");
+				memory = DEFAULT_MEMORY;
+			}
+			
+			indexBuilder = new ExternalIndexBuilder(invertedIndex, memory);
+		}
+		
+		if(argument.hasFlag(STREAM_FLAG)) {
+			int memory;
+			
+			try {
+				memory = Integer.parseInt(argument.getString(STREAM_FLAG, String.valueOf(DEFAULT_STREAM)));
+				
+				if(memory <= 0) {
+					memory = DEFAULT_STREAM;
+				}
+			}
+			catch(NumberFormatException e) {
+				System.out.println("NumberFormatException");
+				memory = DEFAULT_STREAM;
+			}
+			
+			query = new ExternalQueryParseFile(invertedIndex, queue, memory, cache);
+		}
+		
+		if(argument.hasFlag(PIPELINE_FLAG)) {
+			// stemming takes most of the time, so it gets whatever the readers and indexers leave
+			int[] stages = { 1, Math.max(1, threads - 2), 1 };
+			
+			try {
+				String[] counts = argument.getString(PIPELINE_FLAG, "").split(",");
+				
+				for(int i = 0; i < counts.length && i < stages.length; i++) {
+					if(!counts[i].isBlank() && Integer.parseInt(counts[i].strip()) > 0) {
+						stages[i] = Integer.parseInt(counts[i].strip());
+					}
+				}
+			}
+			catch(NumberFormatException e) {
+				System.out.println("NumberFormatException");
+			}
+			
+			indexBuilder = new PipelinedIndexBuilder(invertedIndex, stages[0], stages[1], stages[2]);
+		}
+		
+		if(argument.hasFlag(INCREMENTAL_FLAG)) {
+			indexBuilder = new IncrementalIndexBuilder(invertedIndex, queue,
+					argument.getPath(INCREMENTAL_FLAG, INCREMENTAL_DEFAULT));
+		}
+		
+		if(argument.hasFlag(PROFILE_FLAG)) {
+			// only the thread-safe index has a lock to profile
+			if(invertedIndex == threadSafe) {
+				threadSafe.setLockProfiler(new LockProfiler());
+			}
+			else {
+				System.out.println("Lock profiling needs -threads");
+			}
+		}
+		
+		if(argument.hasFlag(LOAD_FLAG)) {
+			Path path = argument.getPath(LOAD_FLAG, INDEX_DEFAULT);
+			Path counts = argument.hasFlag(LOAD_COUNTS_FLAG) ? argument.getPath(LOAD_COUNTS_FLAG, COUNTS_DEFAULT) : null;
+			
+			try {
+				invertedIndex.addAll(IndexJSONReader.read(path, counts));
+			}
+			catch (IOException e) {
+				System.out.println("Unable to load the index from path: " + path);
+				log.debug(e.getMessage());
+			}
+		}
+		
 		if(argument.hasFlag(HTML_FLAG)) {
 			 						
 			try {
@@ -202,8 +393,39 @@ public class Driver {
 		 * Okay now I'm going to work on displaying everything
 		 */			
 		
+		if(argument.hasFlag(HTML_FLAG)) {
+			invertedIndex.freeze();
+		}
+		
+		log.debug("Thread count: ", threads);
+		log.info("Started");
+		
+		if(argument.hasFlag(TEXT_FLAG) && argument.getPath(TEXT_FLAG) != null) {
+			Path path = argument.getPath(TEXT_FLAG);
+			
+			try {
+				indexBuilder.traverseDirectory(path);
+			}
+			catch (IOException e) {
+				System.out.println("Unable to traverse directory");
+			}
+			invertedIndex.freeze();
+			
+			if(argument.hasFlag(WATCH_FLAG) && queue != null) {
+				try {
+					watcher = new DirectoryWatcher(path, new ThreadSafeInvertedIndexBuilder(threadSafe, queue));
+					Thread thread = new Thread(watcher, "DirectoryWatcher");
+					thread.setDaemon(true);
+					thread.start();
+				}
+				catch (IOException e) {
+					System.out.println("Unable to watch directory");
+				}
+			}
+		}
+		
 		if(argument.hasFlag(SERVER_FLAG)) {
-			servlet = new SearchServlet(query, threadSafe, crawler);
+			servlet = new SearchServlet(query, threadSafe, crawler, cache);
 //			
 //			System.setProperty("org.eclipse.jetty.LEVEL", "DEBUG");
 //
@@ -227,25 +449,16 @@ public class Driver {
 			server.join();
 		}
 		
-		log.debug("Thread count: ", threads);
-		log.info("Started");
-		
-		if(argument.hasFlag(TEXT_FLAG) && argument.getPath(TEXT_FLAG) != null) {
-			Path path = argument.getPath(TEXT_FLAG);
-			
-			try {
-				indexBuilder.traverseDirectory(path);
-			}
-			catch (IOException e) {
-				System.out.println("Unable to traverse directory");
-			}
-		}
-		
 		if (argument.hasFlag(INDEX_FLAG)) {
 			Path path = argument.getPath(INDEX_FLAG, INDEX_DEFAULT);
 			
 			try {
-				invertedIndex.toJSON(path);
+				if(queue != null) {
+					invertedIndex.toJSON(path, queue);
+				}
+				else {
+					invertedIndex.toJSON(path);
+				}
 			}
 			catch (IOException e) {
 				log.error("Unable to write the index to path: " + path);
@@ -289,7 +502,28 @@ public class Driver {
 		double seconds = (double) elapsed.toMillis() / Duration.ofSeconds(1).toMillis();
 		System.out.printf("Elapsed: %f seconds%n", seconds);
 		
+		if(indexBuilder instanceof PipelinedIndexBuilder) {
+			log.info("Pipeline:\n{}", ((PipelinedIndexBuilder) indexBuilder).stats());
+		}
+		
+		if(cache != null) {
+			log.info("Search cache:\n{}", cache.stats());
+		}
+		
+		if(threadSafe instanceof SegmentedInvertedIndex) {
+			log.info("Segments:\n{}", ((SegmentedInvertedIndex) threadSafe).stats());
+		}
+		
+		if(threadSafe.getLockProfiler() != null) {
+			log.info("Lock contention:\n{}", threadSafe.getLockProfiler());
+		}
+		
+		if(watcher != null) {
+			watcher.close();
+		}
+		
 		if(queue != null) {
+			log.debug("Work queue metrics:\n{}", queue.metrics());
 			queue.shutdown();
 		}
 	}
@@ -0,0 +1,299 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Builds an inverted index from a directory using a bounded amount of heap.
+ * Files are indexed into an in-memory buffer, which is written to a temporary
+ * file as a sorted run whenever its estimated size passes the memory budget.
+ * Once every file is read, the runs are combined with a streaming k-way merge
+ * straight into a packed {@link FrozenIndex}, so the nested maps for the whole
+ * corpus never exist at once.
+ *
+ * @author angelarichards261
+ */
+public class ExternalIndexBuilder extends InvertedIndexBuilder {
+
+	/**
+	 * Rough number of heap bytes one position takes in the buffer, including
+	 * its share of the tree map entries for its word and location
+	 */
+	public static final int BYTES_PER_POSITION = 100;
+
+	/**
+	 * The index the merged result is added to
+	 */
+	private final InvertedIndex invertedIndex;
+
+	/**
+	 * The most heap the buffer may use before it is spilled, in bytes
+	 */
+	private final long budget;
+
+	/**
+	 * Files indexed since the last spill
+	 */
+	private InvertedIndex buffer;
+
+	/**
+	 * Number of positions in the buffer
+	 */
+	private long buffered;
+
+	/**
+	 * The sorted runs spilled so far
+	 */
+	private final List<Path> runs;
+
+	/**
+	 * Constructor for the external builder
+	 * @param invertedIndex the index the result is added to
+	 * @param megabytes the memory budget for the buffer, in megabytes
+	 */
+	public ExternalIndexBuilder(InvertedIndex invertedIndex, int megabytes) {
+		super(invertedIndex);
+		this.invertedIndex = invertedIndex;
+		this.budget = Math.max(1, megabytes) * 1024L * 1024L;
+		this.buffer = new InvertedIndex();
+		this.buffered = 0;
+		this.runs = new ArrayList<>();
+	}
+
+	@Override
+	public void traverseDirectory(Path path) throws IOException {
+		super.traverseDirectory(path);
+		finish();
+	}
+
+	@Override
+	public void addPath(Path path) throws IOException {
+		InvertedIndex index = new InvertedIndex();
+		addPath(path, index);
+		buffer.addAll(index);
+		buffered += index.getCount().getOrDefault(path.toString(), 0);
+
+		if(buffered * BYTES_PER_POSITION >= budget) {
+			spill();
+		}
+	}
+
+	/**
+	 * Returns the number of runs spilled to disk and not yet merged
+	 * @return the number of runs
+	 */
+	public int runs() {
+		return runs.size();
+	}
+
+	/**
+	 * Merges everything indexed so far into the index. If nothing was spilled,
+	 * the buffer is added directly, otherwise the buffer is spilled as one last
+	 * run and all runs are merged.
+	 * @throws IOException if unable to read or write a run
+	 */
+	public void finish() throws IOException {
+		if(runs.isEmpty()) {
+			InvertedIndex remaining = buffer;
+			buffer = new InvertedIndex();
+			buffered = 0;
+			invertedIndex.addAll(remaining);
+			return;
+		}
+
+		spill();
+		try {
+			invertedIndex.addAll(merge(runs));
+		}
+		finally {
+			for(Path run : runs) {
+				Files.deleteIfExists(run);
+			}
+			runs.clear();
+		}
+	}
+
+	/**
+	 * Writes the buffer to a temporary file as a sorted run and empties it. A
+	 * run holds the word count of each location, followed by each word in
+	 * sorted order with its locations in sorted order and their positions.
+	 * @throws IOException if unable to write the run
+	 */
+	private void spill() throws IOException {
+		Path run = Files.createTempFile("index-run", ".bin");
+		run.toFile().deleteOnExit();
+
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(run), 1 << 16))) {
+			Map<String, Integer> counts = buffer.getCount();
+			out.writeInt(counts.size());
+
+			for(var entry : counts.entrySet()) {
+				out.writeUTF(entry.getKey());
+				out.writeInt(entry.getValue());
+			}
+
+			for(String word : buffer.getWords()) {
+				Set<String> locations = buffer.getLocations(word);
+				out.writeUTF(word);
+				out.writeInt(locations.size());
+
+				for(String location : locations) {
+					Set<Integer> positions = buffer.getPositions(word, location);
+					out.writeUTF(location);
+					out.writeInt(positions.size());
+
+					for(int position : positions) {
+						out.writeInt(position);
+					}
+				}
+			}
+		}
+
+		runs.add(run);
+		buffer = new InvertedIndex();
+		buffered = 0;
+	}
+
+	/**
+	 * Combines sorted runs into a frozen index with a k-way merge. Only the
+	 * current word of each run is held in memory.
+	 * @param paths the runs to merge
+	 * @return the merged index
+	 * @throws IOException if unable to read a run
+	 */
+	public static FrozenIndex merge(List<Path> paths) throws IOException {
+		List<Run> open = new ArrayList<>();
+		try {
+			TreeMap<String, Integer> counts = new TreeMap<>();
+
+			for(Path path : paths) {
+				Run run = new Run(path);
+				open.add(run);
+				run.readCounts(counts);
+			}
+
+			FrozenIndex.Builder builder = new FrozenIndex.Builder(counts);
+			PriorityQueue<Run> queue = new PriorityQueue<>(Comparator.comparing((Run run) -> run.word));
+
+			for(Run run : open) {
+				if(run.next()) {
+					queue.add(run);
+				}
+			}
+
+			while(!queue.isEmpty()) {
+				String word = queue.peek().word;
+				TreeMap<String, int[]> postings = new TreeMap<>();
+
+				while(!queue.isEmpty() && queue.peek().word.equals(word)) {
+					Run run = queue.poll();
+					run.readPostings(postings);
+
+					if(run.next()) {
+						queue.add(run);
+					}
+				}
+
+				builder.addWord(word);
+				for(var entry : postings.entrySet()) {
+					builder.addPosting(entry.getKey(), entry.getValue(), entry.getValue().length);
+				}
+			}
+			return builder.build();
+		}
+		finally {
+			for(Run run : open) {
+				run.close();
+			}
+		}
+	}
+
+	/**
+	 * Reads one sorted run written by {@link ExternalIndexBuilder#spill()}
+	 * @author angelarichards261
+	 */
+	private static class Run implements Closeable {
+
+		/** The stream the run is read from */
+		private final DataInputStream in;
+
+		/** The current word, or null before the first and after the last */
+		private String word;
+
+		/**
+		 * Opens a run
+		 * @param path the run file
+		 * @throws IOException if unable to open the file
+		 */
+		public Run(Path path) throws IOException {
+			this.in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 1 << 16));
+			this.word = null;
+		}
+
+		/**
+		 * Adds the word counts of this run to the given counts. Must be called
+		 * once, before {@link #next()}.
+		 * @param counts the counts to add to
+		 * @throws IOException if unable to read the run
+		 */
+		public void readCounts(Map<String, Integer> counts) throws IOException {
+			int size = in.readInt();
+			for(int i = 0; i < size; i++) {
+				counts.merge(in.readUTF(), in.readInt(), Integer::sum);
+			}
+		}
+
+		/**
+		 * Moves to the next word
+		 * @return true if there is another word
+		 * @throws IOException if unable to read the run
+		 */
+		public boolean next() throws IOException {
+			try {
+				word = in.readUTF();
+				return true;
+			}
+			catch(EOFException e) {
+				word = null;
+				return false;
+			}
+		}
+
+		/**
+		 * Reads the postings of the current word into the given map, combining
+		 * positions for locations already in it
+		 * @param postings the postings of the word so far
+		 * @throws IOException if unable to read the run
+		 */
+		public void readPostings(Map<String, int[]> postings) throws IOException {
+			int locations = in.readInt();
+
+			for(int i = 0; i < locations; i++) {
+				String location = in.readUTF();
+				int[] positions = new int[in.readInt()];
+
+				for(int j = 0; j < positions.length; j++) {
+					positions[j] = in.readInt();
+				}
+				postings.merge(location, positions, FrozenIndex::union);
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+	}
+}
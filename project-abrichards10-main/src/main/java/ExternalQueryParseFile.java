@@ -0,0 +1,401 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Searches the queries in a file and writes their results using a bounded
+ * amount of heap. Results are kept in an in-memory buffer, which is written
+ * to a temporary file as a sorted run of finished JSON entries whenever its
+ * estimated size passes the memory budget. The results file is then written
+ * with a streaming k-way merge of the runs by query, so the results of every
+ * query never exist at once. The output is the same as
+ * {@link QueryParseFile} writes.
+ *
+ * With a work queue, the query file is read in chunks of
+ * {@link #CHUNK_LINES} lines that are searched in parallel, so the queued
+ * queries do not pile up either.
+ *
+ * @author angelarichards261
+ */
+public class ExternalQueryParseFile implements QueryParseFileInterface {
+
+	/**
+	 * Rough number of heap bytes one result takes in the buffer
+	 */
+	public static final int BYTES_PER_RESULT = 64;
+
+	/**
+	 * Number of lines read from the query file before waiting for their
+	 * searches to finish
+	 */
+	public static final int CHUNK_LINES = 10_000;
+
+	/**
+	 * The index searched
+	 */
+	private final InvertedIndex invertedIndex;
+
+	/**
+	 * The queue queries are searched on, or null to search on the caller
+	 */
+	private final WorkQueue queue;
+
+	/**
+	 * Cache of search results shared with other searchers, or null
+	 */
+	private final SearchCache cache;
+
+	/**
+	 * The most heap the buffer may use before it is spilled, in bytes
+	 */
+	private final long budget;
+
+	/**
+	 * Results of the queries searched since the last spill, by query
+	 */
+	private final TreeMap<String, List<InvertedIndex.Results>> buffer;
+
+	/**
+	 * Estimated heap used by the buffer, in bytes
+	 */
+	private long buffered;
+
+	/**
+	 * The sorted runs spilled so far
+	 */
+	private final List<Path> runs;
+
+	/**
+	 * Constructor for the external query parser
+	 * @param invertedIndex the index to search, which must be thread-safe if a queue is given
+	 * @param queue the queue to search on, or null to search on the caller
+	 * @param megabytes the memory budget for the buffer, in megabytes
+	 */
+	public ExternalQueryParseFile(InvertedIndex invertedIndex, WorkQueue queue, int megabytes) {
+		this(invertedIndex, queue, megabytes, null);
+	}
+
+	/**
+	 * Constructor for the external query parser, searching through a cache
+	 * of results
+	 * @param invertedIndex the index to search, which must be thread-safe if a queue is given
+	 * @param queue the queue to search on, or null to search on the caller
+	 * @param megabytes the memory budget for the buffer, in megabytes
+	 * @param cache the cache of search results for the index, or null to search the index directly
+	 */
+	public ExternalQueryParseFile(InvertedIndex invertedIndex, WorkQueue queue, int megabytes, SearchCache cache) {
+		this.invertedIndex = invertedIndex;
+		this.queue = queue;
+		this.cache = cache;
+		this.budget = Math.max(1, megabytes) * 1024L * 1024L;
+		this.buffer = new TreeMap<>();
+		this.buffered = 0;
+		this.runs = new ArrayList<>();
+	}
+
+	@Override
+	public void parseQueriesInFile(Path input, boolean match) throws IOException {
+		if(Files.isDirectory(input)) {
+			throw new IOException("Wrong file for query path");
+		}
+
+		try(BufferedReader reader = Files.newBufferedReader(input, StandardCharsets.UTF_8)) {
+			String line;
+			int lines = 0;
+
+			while((line = reader.readLine()) != null) {
+				parseQuery(line, match);
+
+				if(queue != null && ++lines % CHUNK_LINES == 0) {
+					queue.finish();
+				}
+			}
+		}
+
+		if(queue != null) {
+			queue.finish();
+		}
+	}
+
+	@Override
+	public void parseQuery(String query, boolean match) {
+		if(queue != null) {
+			queue.execute(new ExternalQueryTasks(query, match));
+		}
+		else {
+			search(query, match);
+		}
+	}
+
+	/**
+	 * Searches one query and buffers its results, spilling the buffer if it
+	 * is over budget. A query already in the buffer is skipped, and one that
+	 * was already spilled is dropped again when the runs are merged.
+	 * @param query the line of the query file
+	 * @param match true for an exact search
+	 */
+	private void search(String query, boolean match) {
+		Set<String> usedPhrases = TextFileStemmer.uniqueStems(query);
+		if(usedPhrases.isEmpty()) {
+			return;
+		}
+
+		String lineFinal = String.join(" ", usedPhrases);
+		synchronized(buffer) {
+			if(buffer.containsKey(lineFinal)) {
+				return;
+			}
+		}
+
+		List<InvertedIndex.Results> results = cache != null ? cache.search(usedPhrases, match) : invertedIndex.search(usedPhrases, match);
+
+		synchronized(buffer) {
+			if(buffer.putIfAbsent(lineFinal, results) == null) {
+				buffered += (long) (results.size() + 1) * BYTES_PER_RESULT + 2L * lineFinal.length();
+
+				if(buffered >= budget) {
+					try {
+						spill();
+					}
+					catch(IOException e) {
+						System.out.println("Unable to spill query results, keeping them in memory");
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of runs spilled to disk and not yet merged
+	 * @return the number of runs
+	 */
+	public int runs() {
+		synchronized(buffer) {
+			return runs.size();
+		}
+	}
+
+	@Override
+	public void queryToJSON(Path path) throws IOException {
+		synchronized(buffer) {
+			if(runs.isEmpty()) {
+				JSONWriter.asObject(buffer, path);
+				return;
+			}
+
+			spill();
+			try {
+				merge(runs, path);
+			}
+			finally {
+				for(Path run : runs) {
+					Files.deleteIfExists(run);
+				}
+				runs.clear();
+			}
+		}
+	}
+
+	/**
+	 * Writes the buffer to a temporary file as a sorted run and empties it.
+	 * Each query is written with its entry rendered as it appears in the
+	 * results file.
+	 * @throws IOException if unable to write the run
+	 */
+	private void spill() throws IOException {
+		Path run = Files.createTempFile("results-run", ".bin");
+		run.toFile().deleteOnExit();
+
+		try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(run), 1 << 16))) {
+			StringWriter entry = new StringWriter();
+
+			for(Map.Entry<String, List<InvertedIndex.Results>> element : buffer.entrySet()) {
+				entry.getBuffer().setLength(0);
+				JSONWriter.asEntry(element, entry, 0);
+
+				writeBytes(out, element.getKey().getBytes(StandardCharsets.UTF_8));
+				writeBytes(out, entry.toString().getBytes(StandardCharsets.UTF_8));
+			}
+		}
+
+		runs.add(run);
+		buffer.clear();
+		buffered = 0;
+	}
+
+	/**
+	 * Writes a length and then that many bytes
+	 * @param out where to write
+	 * @param bytes the bytes
+	 * @throws IOException if unable to write
+	 */
+	private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	/**
+	 * Combines sorted runs into one results file with a k-way merge. Only the
+	 * current query of each run is held in memory, and a query found in more
+	 * than one run is written once.
+	 * @param paths the runs to merge
+	 * @param path the results file
+	 * @throws IOException if unable to read a run or write the file
+	 */
+	public static void merge(List<Path> paths, Path path) throws IOException {
+		List<Run> open = new ArrayList<>();
+		try(BufferedWriter writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8)) {
+			PriorityQueue<Run> queue = new PriorityQueue<>(Comparator.comparing((Run run) -> run.query));
+
+			for(Path run : paths) {
+				Run next = new Run(run);
+				open.add(next);
+				if(next.next()) {
+					queue.add(next);
+				}
+			}
+
+			writer.write('{');
+			boolean first = true;
+
+			while(!queue.isEmpty()) {
+				Run run = queue.poll();
+				String query = run.query;
+
+				writer.write(first ? "\n" : ",\n");
+				writer.write(run.entry());
+				first = false;
+
+				if(run.next()) {
+					queue.add(run);
+				}
+
+				// the same query in another run has the same results
+				while(!queue.isEmpty() && queue.peek().query.equals(query)) {
+					Run duplicate = queue.poll();
+					duplicate.entry();
+					if(duplicate.next()) {
+						queue.add(duplicate);
+					}
+				}
+			}
+
+			writer.write("\n}\n");
+		}
+		finally {
+			for(Run run : open) {
+				run.close();
+			}
+		}
+	}
+
+	/**
+	 * Reads one sorted run written by {@link ExternalQueryParseFile#spill()}
+	 * @author angelarichards261
+	 */
+	private static class Run implements Closeable {
+
+		/** The stream the run is read from */
+		private final DataInputStream in;
+
+		/** The current query, or null before the first and after the last */
+		private String query;
+
+		/**
+		 * Opens a run
+		 * @param path the run file
+		 * @throws IOException if unable to open the file
+		 */
+		public Run(Path path) throws IOException {
+			this.in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 1 << 16));
+			this.query = null;
+		}
+
+		/**
+		 * Moves to the next query. The entry of the current query must have
+		 * been read first.
+		 * @return true if there is another query
+		 * @throws IOException if unable to read the run
+		 */
+		public boolean next() throws IOException {
+			try {
+				query = new String(readBytes(), StandardCharsets.UTF_8);
+				return true;
+			}
+			catch(EOFException e) {
+				query = null;
+				return false;
+			}
+		}
+
+		/**
+		 * Reads the rendered entry of the current query
+		 * @return the entry
+		 * @throws IOException if unable to read the run
+		 */
+		public String entry() throws IOException {
+			return new String(readBytes(), StandardCharsets.UTF_8);
+		}
+
+		/**
+		 * Reads a length and then that many bytes
+		 * @return the bytes
+		 * @throws IOException if unable to read the run
+		 */
+		private byte[] readBytes() throws IOException {
+			byte[] bytes = new byte[in.readInt()];
+			in.readFully(bytes);
+			return bytes;
+		}
+
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+	}
+
+	/**
+	 * Inner Tasks class that searches one query
+	 * @author angelarichards261
+	 */
+	private class ExternalQueryTasks implements Runnable {
+
+		/** The line of the query file */
+		private final String query;
+
+		/** True for an exact search */
+		private final boolean match;
+
+		/**
+		 * Constructor for the task
+		 * @param query the line of the query file
+		 * @param match true for an exact search
+		 */
+		public ExternalQueryTasks(String query, boolean match) {
+			this.query = query;
+			this.match = match;
+		}
+
+		@Override
+		public void run() {
+			search(query, match);
+		}
+	}
+}
@@ -0,0 +1,1389 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Read-only form of an {@link InvertedIndex} packed into parallel arrays. Words
+ * and locations are stored once each in sorted arrays and referred to by their
+ * position (ordinal) in those arrays, and all postings and positions are laid
+ * out back to back in primitive arrays. This takes a fraction of the heap of
+ * the nested tree maps, and lets searches scan postings sequentially.
+ *
+ * @author angelarichards261
+ */
+public class FrozenIndex {
+
+	/** Marks the start of an index written by {@link #write(DataOutput)} */
+	private static final int MAGIC = 0x46524f5a;
+
+	/** Rough number of positions in each range of words rendered as JSON by one task */
+	public static final int JSON_RANGE_POSITIONS = 1 << 16;
+
+	/** What follows a word in the JSON */
+	private static final byte[] OBJECT_START = "\": {".getBytes(StandardCharsets.US_ASCII);
+
+	/** What comes before a location in the JSON */
+	private static final byte[] POSTING_START = "\n\t\t\"".getBytes(StandardCharsets.US_ASCII);
+
+	/** What follows a location in the JSON */
+	private static final byte[] ARRAY_START = "\": [".getBytes(StandardCharsets.US_ASCII);
+
+	/** What comes before a position in the JSON */
+	private static final byte[] POSITION_START = "\n\t\t\t".getBytes(StandardCharsets.US_ASCII);
+
+	/** What closes the positions of a location in the JSON */
+	private static final byte[] ARRAY_END = "\n\t\t]".getBytes(StandardCharsets.US_ASCII);
+
+	/** What closes the locations of a word in the JSON */
+	private static final byte[] OBJECT_END = "\n\t}".getBytes(StandardCharsets.US_ASCII);
+
+	/** Prefixes matching at least this many words have their merged postings cached */
+	public static final int PREFIX_CACHE_WORDS = 64;
+
+	/** Most merged postings cached for each index */
+	public static final int PREFIX_CACHE_POSTINGS = 1 << 22;
+
+	/** Counts each thread merges postings into before caching them, reused between prefixes */
+	private static final ThreadLocal<InvertedIndex.Accumulator> SCRATCH = new ThreadLocal<>();
+
+	/** The sorted words; a word's ordinal is its index in this array */
+	private final String[] words;
+
+	/** The sorted locations; a location's id is its index in this array */
+	private final String[] locations;
+
+	/** The word count of each location, indexed by location id */
+	private final int[] lengths;
+
+	/** Whether each location has a word count, indexed by location id */
+	private final boolean[] counted;
+
+	/** The postings of word i are postingStarts[i] up to postingStarts[i + 1] */
+	private final int[] postingStarts;
+
+	/** The location id of each posting, increasing within each word */
+	private final int[] postingLocations;
+
+	/** The positions of posting j are positionStarts[j] up to positionStarts[j + 1] */
+	private final int[] positionStarts;
+
+	/** The positions of every posting, increasing within each posting */
+	private final int[] positions;
+
+	/** The ids of deleted locations, whose postings are skipped until purged */
+	private final BitSet deleted;
+
+	/** The merged postings of prefixes matching many words, built as they are searched */
+	private final ConcurrentHashMap<String, Expansion> expansions;
+
+	/** The number of merged postings cached */
+	private final AtomicLong expanded;
+
+	/**
+	 * Packs the given index and word counts
+	 * @param index the words, locations and positions to pack
+	 * @param counts the word count of each location
+	 */
+	public FrozenIndex(TreeMap<String, TreeMap<String, TreeSet<Integer>>> index, TreeMap<String, Integer> counts) {
+		TreeSet<String> allLocations = new TreeSet<>(counts.keySet());
+		int postingCount = 0;
+		long positionCount = 0;
+
+		for(TreeMap<String, TreeSet<Integer>> postings : index.values()) {
+			allLocations.addAll(postings.keySet());
+			postingCount += postings.size();
+
+			for(TreeSet<Integer> set : postings.values()) {
+				positionCount += set.size();
+			}
+		}
+
+		words = index.keySet().toArray(new String[0]);
+		locations = allLocations.toArray(new String[0]);
+		lengths = new int[locations.length];
+		counted = new boolean[locations.length];
+
+		for(int i = 0; i < locations.length; i++) {
+			Integer length = counts.get(locations[i]);
+			counted[i] = length != null;
+			lengths[i] = length == null ? 0 : length;
+		}
+
+		postingStarts = new int[words.length + 1];
+		postingLocations = new int[postingCount];
+		positionStarts = new int[postingCount + 1];
+		positions = new int[Math.toIntExact(positionCount)];
+
+		int word = 0;
+		int posting = 0;
+		int position = 0;
+
+		for(TreeMap<String, TreeSet<Integer>> postings : index.values()) {
+			postingStarts[word++] = posting;
+
+			for(var entry : postings.entrySet()) {
+				postingLocations[posting] = Arrays.binarySearch(locations, entry.getKey());
+				positionStarts[posting++] = position;
+
+				for(int value : entry.getValue()) {
+					positions[position++] = value;
+				}
+			}
+		}
+		postingStarts[word] = posting;
+		positionStarts[posting] = position;
+		deleted = new BitSet();
+		expansions = new ConcurrentHashMap<>();
+		expanded = new AtomicLong();
+	}
+
+	/**
+	 * Initializes a frozen index from already packed arrays
+	 * @param words the sorted words
+	 * @param locations the sorted locations
+	 * @param lengths the word count of each location
+	 * @param counted whether each location has a word count
+	 * @param postingStarts where the postings of each word start
+	 * @param postingLocations the location id of each posting
+	 * @param positionStarts where the positions of each posting start
+	 * @param positions the positions of every posting
+	 */
+	private FrozenIndex(String[] words, String[] locations, int[] lengths, boolean[] counted,
+			int[] postingStarts, int[] postingLocations, int[] positionStarts, int[] positions) {
+		this.words = words;
+		this.locations = locations;
+		this.lengths = lengths;
+		this.counted = counted;
+		this.postingStarts = postingStarts;
+		this.postingLocations = postingLocations;
+		this.positionStarts = positionStarts;
+		this.positions = positions;
+		this.deleted = new BitSet();
+		this.expansions = new ConcurrentHashMap<>();
+		this.expanded = new AtomicLong();
+	}
+
+	/**
+	 * Initializes a frozen index sharing the arrays of another, with its own
+	 * set of deleted locations
+	 * @param index the index whose arrays to share
+	 * @param deleted the ids of deleted locations
+	 */
+	private FrozenIndex(FrozenIndex index, BitSet deleted) {
+		this.words = index.words;
+		this.locations = index.locations;
+		this.lengths = index.lengths;
+		this.counted = index.counted;
+		this.postingStarts = index.postingStarts;
+		this.postingLocations = index.postingLocations;
+		this.positionStarts = index.positionStarts;
+		this.positions = index.positions;
+		this.deleted = deleted;
+		this.expansions = new ConcurrentHashMap<>();
+		this.expanded = new AtomicLong();
+	}
+
+	/**
+	 * Returns a copy of this index with a location marked as deleted. The copy
+	 * shares the packed arrays, and the postings of the location are skipped
+	 * from then on and dropped when the index is merged or thawed.
+	 * @param location the location to delete
+	 * @return the copy, or this index if it has no live postings for the location
+	 */
+	public FrozenIndex delete(String location) {
+		int id = Arrays.binarySearch(locations, location);
+		if(id < 0 || deleted.get(id)) {
+			return this;
+		}
+
+		BitSet copy = (BitSet) deleted.clone();
+		copy.set(id);
+		return new FrozenIndex(this, copy);
+	}
+
+	/**
+	 * Returns the number of deleted locations not yet purged
+	 * @return the number of deleted locations
+	 */
+	public int deletedCount() {
+		return deleted.cardinality();
+	}
+
+	/**
+	 * Returns true if the index holds a location that is not deleted
+	 * @param location the location
+	 * @return true if the location is in the index
+	 */
+	public boolean hasLocation(String location) {
+		int id = Arrays.binarySearch(locations, location);
+		return id >= 0 && !deleted.get(id);
+	}
+
+	/**
+	 * Returns true if a word has any postings at locations not deleted
+	 * @param word the ordinal of the word
+	 * @return true if the word has a live posting
+	 */
+	private boolean hasPostings(int word) {
+		if(deleted.isEmpty()) {
+			return postingStarts[word] < postingStarts[word + 1];
+		}
+		for(int posting = postingStarts[word]; posting < postingStarts[word + 1]; posting++) {
+			if(!deleted.get(postingLocations[posting])) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Unpacks this index back into nested maps
+	 * @param index where to put the words, locations and positions
+	 * @param counts where to put the word count of each location
+	 */
+	public void thaw(TreeMap<String, TreeMap<String, TreeSet<Integer>>> index, TreeMap<String, Integer> counts) {
+		for(int word = 0; word < words.length; word++) {
+			TreeMap<String, TreeSet<Integer>> postings = new TreeMap<>();
+
+			for(int posting = postingStarts[word]; posting < postingStarts[word + 1]; posting++) {
+				if(!deleted.get(postingLocations[posting])) {
+					postings.put(locations[postingLocations[posting]], positionSet(posting));
+				}
+			}
+			if(!postings.isEmpty()) {
+				index.put(words[word], postings);
+			}
+		}
+		counts.putAll(getCount());
+	}
+
+	/**
+	 * Returns the number of words
+	 * @return number of words
+	 */
+	public int size() {
+		if(deleted.isEmpty()) {
+			return words.length;
+		}
+
+		int size = 0;
+		for(int word = 0; word < words.length; word++) {
+			if(hasPostings(word)) {
+				size++;
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * Returns the number of locations
+	 * @return number of locations
+	 */
+	public int locations() {
+		return locations.length;
+	}
+
+	/**
+	 * Returns the location with the given id
+	 * @param id the location id
+	 * @return the location
+	 */
+	public String location(int id) {
+		return locations[id];
+	}
+
+	/**
+	 * Returns the word count of the location with the given id
+	 * @param id the location id
+	 * @return the number of words at the location
+	 */
+	public int length(int id) {
+		return lengths[id];
+	}
+
+	/**
+	 * Finds the ordinal of a word
+	 * @param word the word to find
+	 * @return the ordinal, or -1 if the word is not in the index
+	 */
+	public int find(String word) {
+		int found = Arrays.binarySearch(words, word);
+		return found < 0 ? -1 : found;
+	}
+
+	/**
+	 * Finds the range of ordinals of the words starting with a prefix
+	 * @param prefix the prefix
+	 * @return the first ordinal and one past the last ordinal
+	 */
+	public int[] prefixRange(String prefix) {
+		int start = Arrays.binarySearch(words, prefix);
+		start = start < 0 ? -start - 1 : start;
+
+		// the words starting with the prefix come right after it, so binary search for the last
+		int low = start;
+		int high = words.length;
+		while(low < high) {
+			int middle = (low + high) >>> 1;
+			if(words[middle].startsWith(prefix)) {
+				low = middle + 1;
+			}
+			else {
+				high = middle;
+			}
+		}
+		return new int[] { start, low };
+	}
+
+	/**
+	 * Adds the number of positions of a word at each of its locations to the
+	 * running counts. Locations seen for the first time are appended to the
+	 * touched list, so callers can visit them in the order they were found.
+	 * @param word the ordinal of the word
+	 * @param counts the running count of each location, indexed by id
+	 * @param touched the ids of the locations with a count so far
+	 * @param size the number of ids in touched
+	 * @return the new number of ids in touched
+	 */
+	public int accumulate(int word, long[] counts, int[] touched, int size) {
+		for(int posting = postingStarts[word]; posting < postingStarts[word + 1]; posting++) {
+			int location = postingLocations[posting];
+
+			if(deleted.get(location)) {
+				continue;
+			}
+			if(counts[location] == 0) {
+				touched[size++] = location;
+			}
+			counts[location] += positionStarts[posting + 1] - positionStarts[posting];
+		}
+		return size;
+	}
+
+	/**
+	 * Adds up the matches of the search terms at each location, exactly or by
+	 * prefix, as {@link #accumulate(int, long[], int[], int)} does for one word
+	 * @param terms cleaned and stemmed search terms
+	 * @param matches true for exact matches, false for prefix matches
+	 * @param counts the running count of each location, indexed by id
+	 * @param touched the ids of the locations with a count, in the order found
+	 * @return the number of ids in touched
+	 */
+	public int accumulate(Set<String> terms, boolean matches, long[] counts, int[] touched) {
+		return accumulate(terms, matches, counts, touched, null);
+	}
+
+	/**
+	 * Adds up the matches of the search terms at each location, as
+	 * {@link #accumulate(Set, boolean, long[], int[])} does, remembering the
+	 * words each term matched so searches sharing a term only look it up once
+	 * @param terms cleaned and stemmed search terms
+	 * @param matches true for exact matches, false for prefix matches
+	 * @param counts the running count of each location, indexed by id
+	 * @param touched the ids of the locations with a count, in the order found
+	 * @param ranges the range of ordinals matched by each term looked up so
+	 * far, shared by searches of the same kind, or null to not remember them
+	 * @return the number of ids in touched
+	 */
+	public int accumulate(Set<String> terms, boolean matches, long[] counts, int[] touched, Map<String, int[]> ranges) {
+		int size = 0;
+
+		for(String term : terms) {
+			int[] range = ranges == null ? range(term, matches) : ranges.computeIfAbsent(term, key -> range(key, matches));
+
+			Expansion expansion = range[1] - range[0] >= PREFIX_CACHE_WORDS ? expansion(term, range) : null;
+			if(expansion != null) {
+				size = expansion.accumulate(counts, touched, size);
+				continue;
+			}
+
+			for(int word = range[0]; word < range[1]; word++) {
+				size = accumulate(word, counts, touched, size);
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * Returns the postings of every word a prefix matches merged into one count
+	 * per location, building and caching them the first time. The index never
+	 * changes, so the cache never goes stale; changing the index makes a new one.
+	 * Once the cache is full, nothing more is built, so the caller adds up the
+	 * words one by one instead of merging postings it cannot keep.
+	 * @param prefix the prefix
+	 * @param range the ordinals of the words it matches
+	 * @return the merged postings, or null if the cache is full
+	 */
+	private Expansion expansion(String prefix, int[] range) {
+		Expansion expansion = expansions.get(prefix);
+		if(expansion != null) {
+			return expansion;
+		}
+		if(expanded.get() >= PREFIX_CACHE_POSTINGS) {
+			return null;
+		}
+
+		InvertedIndex.Accumulator scratch = SCRATCH.get();
+		if(scratch == null || scratch.counts().length < locations.length) {
+			scratch = new InvertedIndex.Accumulator(locations.length);
+			SCRATCH.set(scratch);
+		}
+
+		long[] counts = scratch.counts();
+		int[] touched = scratch.touched();
+		int size = 0;
+		try {
+			for(int word = range[0]; word < range[1]; word++) {
+				size = accumulate(word, counts, touched, size);
+			}
+			expansion = new Expansion(touched, counts, size);
+		}
+		finally {
+			for(int i = 0; i < size; i++) {
+				counts[touched[i]] = 0;
+			}
+		}
+
+		if(expanded.addAndGet(size) > PREFIX_CACHE_POSTINGS) {
+			expanded.addAndGet(-size);
+			return expansion;
+		}
+
+		Expansion found = expansions.putIfAbsent(prefix, expansion);
+		if(found != null) {
+			expanded.addAndGet(-size);
+			return found;
+		}
+		return expansion;
+	}
+
+	/**
+	 * Returns the number of prefixes whose merged postings are cached
+	 * @return the number of cached prefixes
+	 */
+	public int expansionCount() {
+		return expansions.size();
+	}
+
+	/**
+	 * Finds the range of ordinals of the words a search term matches
+	 * @param term the cleaned and stemmed search term
+	 * @param matches true for an exact match, false for a prefix match
+	 * @return the first ordinal and one past the last ordinal
+	 */
+	private int[] range(String term, boolean matches) {
+		if(!matches) {
+			return prefixRange(term);
+		}
+
+		int word = find(term);
+		return word < 0 ? new int[] { 0, 0 } : new int[] { word, word + 1 };
+	}
+
+	/**
+	 * Returns the total number of positions stored
+	 * @return number of positions
+	 */
+	public int positionCount() {
+		return positions.length;
+	}
+
+	/**
+	 * Finds the posting of a word at a location
+	 * @param word the word
+	 * @param location the location
+	 * @return the posting, or -1 if the word does not appear at the location
+	 */
+	private int posting(String word, String location) {
+		int ordinal = find(word);
+		int id = Arrays.binarySearch(locations, location);
+
+		if(ordinal < 0 || id < 0 || deleted.get(id)) {
+			return -1;
+		}
+
+		int found = Arrays.binarySearch(postingLocations, postingStarts[ordinal], postingStarts[ordinal + 1], id);
+		return found < 0 ? -1 : found;
+	}
+
+	/**
+	 * Returns true if the index contains the word
+	 * @param word the word
+	 * @return true if the index contains the word
+	 */
+	public boolean contains(String word) {
+		int ordinal = find(word);
+		return ordinal >= 0 && hasPostings(ordinal);
+	}
+
+	/**
+	 * Returns true if the word appears at the location
+	 * @param word the word
+	 * @param location the location
+	 * @return true if the word appears at the location
+	 */
+	public boolean contains(String word, String location) {
+		return posting(word, location) >= 0;
+	}
+
+	/**
+	 * Returns true if the word appears at the position in the location
+	 * @param word the word
+	 * @param location the location
+	 * @param position the position
+	 * @return true if the word appears at the position
+	 */
+	public boolean contains(String word, String location, int position) {
+		int posting = posting(word, location);
+		return posting >= 0 && Arrays.binarySearch(positions, positionStarts[posting], positionStarts[posting + 1], position) >= 0;
+	}
+
+	/**
+	 * Returns every word in the index
+	 * @return an unmodifiable sorted set of the words
+	 */
+	public Set<String> getWords() {
+		TreeSet<String> found = new TreeSet<>();
+		for(int word = 0; word < words.length; word++) {
+			if(hasPostings(word)) {
+				found.add(words[word]);
+			}
+		}
+		return Collections.unmodifiableSet(found);
+	}
+
+	/**
+	 * Returns the locations of a word
+	 * @param word the word
+	 * @return an unmodifiable sorted set of the locations
+	 */
+	public Set<String> getLocations(String word) {
+		int ordinal = find(word);
+		if(ordinal < 0) {
+			return Collections.emptySet();
+		}
+
+		TreeSet<String> found = new TreeSet<>();
+		for(int posting = postingStarts[ordinal]; posting < postingStarts[ordinal + 1]; posting++) {
+			if(!deleted.get(postingLocations[posting])) {
+				found.add(locations[postingLocations[posting]]);
+			}
+		}
+		return Collections.unmodifiableSet(found);
+	}
+
+	/**
+	 * Returns the positions of a word at a location
+	 * @param word the word
+	 * @param location the location
+	 * @return an unmodifiable sorted set of the positions
+	 */
+	public Set<Integer> getPositions(String word, String location) {
+		int posting = posting(word, location);
+		return posting < 0 ? Collections.emptySet() : Collections.unmodifiableSet(positionSet(posting));
+	}
+
+	/**
+	 * Copies the positions of a posting into a set
+	 * @param posting the posting
+	 * @return the positions
+	 */
+	private TreeSet<Integer> positionSet(int posting) {
+		TreeSet<Integer> set = new TreeSet<>();
+		for(int i = positionStarts[posting]; i < positionStarts[posting + 1]; i++) {
+			set.add(positions[i]);
+		}
+		return set;
+	}
+
+	/**
+	 * Returns the word count of every location that has one
+	 * @return a sorted map of locations to word counts
+	 */
+	public Map<String, Integer> getCount() {
+		TreeMap<String, Integer> counts = new TreeMap<>();
+		for(int i = 0; i < locations.length; i++) {
+			if(counted[i] && !deleted.get(i)) {
+				counts.put(locations[i], lengths[i]);
+			}
+		}
+		return counts;
+	}
+
+	/**
+	 * Writes the index in the same pretty JSON format as
+	 * {@link JSONWriter#asObject(Map, Writer, int)} writes the nested maps
+	 * @param writer the writer to use
+	 * @throws IOException if an IO error occurs
+	 */
+	public void toJSON(Writer writer) throws IOException {
+		writer.write('{');
+		boolean firstWord = true;
+
+		for(int word = 0; word < words.length; word++) {
+			if(!hasPostings(word)) {
+				continue;
+			}
+			if(!firstWord) {
+				writer.write(',');
+			}
+			firstWord = false;
+			writer.write("\n\t");
+			JSONWriter.quote(words[word], writer);
+			writer.write(": {");
+			boolean firstPosting = true;
+
+			for(int posting = postingStarts[word]; posting < postingStarts[word + 1]; posting++) {
+				if(deleted.get(postingLocations[posting])) {
+					continue;
+				}
+				if(!firstPosting) {
+					writer.write(',');
+				}
+				firstPosting = false;
+				writer.write("\n\t\t");
+				JSONWriter.quote(locations[postingLocations[posting]], writer);
+				writer.write(": [");
+
+				for(int i = positionStarts[posting]; i < positionStarts[posting + 1]; i++) {
+					if(i > positionStarts[posting]) {
+						writer.write(',');
+					}
+					writer.write("\n\t\t\t");
+					JSONWriter.asNumber(positions[i], writer);
+				}
+				writer.write("\n\t\t]");
+			}
+			writer.write("\n\t}");
+		}
+		writer.write("\n}\n");
+	}
+
+	/**
+	 * Writes the index to a file in the same pretty JSON format as
+	 * {@link #toJSON(Writer)}. The words are cut into ranges of about
+	 * {@link #JSON_RANGE_POSITIONS} positions, each rendered straight to UTF-8
+	 * bytes in its own buffer, on the work queue if one is given. The buffers
+	 * are written in order through a file channel while the next window of
+	 * ranges is rendered, and are then reused for a later window.
+	 * @param path the file to write
+	 * @param queue the queue to render on, or null to render on the caller
+	 * @throws IOException if unable to write the file
+	 */
+	public void toJSON(Path path, WorkQueue queue) throws IOException {
+		List<int[]> ranges = jsonRanges();
+		int window = queue == null ? 1 : 2 * queue.size();
+		byte[][] encoded = new byte[locations.length][];
+		for(int i = 0; i < locations.length; i++) {
+			encoded[i] = locations[i].getBytes(StandardCharsets.UTF_8);
+		}
+
+		int first = 0;
+		while(first < words.length && !hasPostings(first)) {
+			first++;
+		}
+
+		ArrayDeque<JSONBuffer> spare = new ArrayDeque<>();
+		List<RenderTasks> pending = render(ranges, 0, window, first, encoded, spare, queue);
+
+		try(FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			writeFully(channel, ByteBuffer.wrap(new byte[] { '{' }));
+
+			for(int start = 0; start < ranges.size(); start += window) {
+				List<RenderTasks> ready = pending;
+				pending = render(ranges, start + window, window, first, encoded, spare, queue);
+
+				for(RenderTasks task : ready) {
+					JSONBuffer buffer = task.await();
+					writeFully(channel, ByteBuffer.wrap(buffer.bytes, 0, buffer.size));
+					buffer.size = 0;
+					spare.push(buffer);
+				}
+			}
+
+			writeFully(channel, ByteBuffer.wrap(new byte[] { '\n', '}', '\n' }));
+		}
+		finally {
+			// let anything still rendering finish before its buffers are dropped
+			for(RenderTasks task : pending) {
+				task.awaitQuietly();
+			}
+		}
+	}
+
+	/**
+	 * Cuts the words into ranges of about {@link #JSON_RANGE_POSITIONS}
+	 * positions each
+	 * @return the first word and the word after the last of each range
+	 */
+	private List<int[]> jsonRanges() {
+		List<int[]> ranges = new ArrayList<>();
+		int from = 0;
+		long size = 0;
+
+		for(int word = 0; word < words.length; word++) {
+			size += positionStarts[postingStarts[word + 1]] - positionStarts[postingStarts[word]] + 1;
+			if(size >= JSON_RANGE_POSITIONS) {
+				ranges.add(new int[] { from, word + 1 });
+				from = word + 1;
+				size = 0;
+			}
+		}
+		if(from < words.length) {
+			ranges.add(new int[] { from, words.length });
+		}
+		return ranges;
+	}
+
+	/**
+	 * Starts rendering one window of ranges
+	 * @param ranges all of the ranges
+	 * @param start the first range of the window
+	 * @param window the number of ranges in a window
+	 * @param first the first word with a posting, which has no comma before it
+	 * @param encoded the UTF-8 bytes of every location
+	 * @param spare buffers free to reuse
+	 * @param queue the queue to render on, or null to render on the caller
+	 * @return the tasks rendering the window, in order
+	 */
+	private List<RenderTasks> render(List<int[]> ranges, int start, int window, int first,
+			byte[][] encoded, ArrayDeque<JSONBuffer> spare, WorkQueue queue) {
+		List<RenderTasks> tasks = new ArrayList<>();
+
+		for(int i = start; i < ranges.size() && i < start + window; i++) {
+			JSONBuffer buffer = spare.isEmpty() ? new JSONBuffer() : spare.pop();
+			RenderTasks task = new RenderTasks(ranges.get(i)[0], ranges.get(i)[1], first, encoded, buffer);
+			tasks.add(task);
+
+			if(queue == null) {
+				task.run();
+			}
+			else {
+				queue.execute(task);
+			}
+		}
+		return tasks;
+	}
+
+	/**
+	 * Renders a range of words as they appear in the JSON written by
+	 * {@link #toJSON(Writer)}
+	 * @param from the first word
+	 * @param to the word after the last
+	 * @param first the first word with a posting, which has no comma before it
+	 * @param encoded the UTF-8 bytes of every location
+	 * @param buffer where to render
+	 */
+	private void render(int from, int to, int first, byte[][] encoded, JSONBuffer buffer) {
+		for(int word = from; word < to; word++) {
+			if(!hasPostings(word)) {
+				continue;
+			}
+			if(word > first) {
+				buffer.write(',');
+			}
+			buffer.write('\n');
+			buffer.write('\t');
+			buffer.write('"');
+			buffer.write(words[word].getBytes(StandardCharsets.UTF_8));
+			buffer.write(OBJECT_START);
+			boolean firstPosting = true;
+
+			for(int posting = postingStarts[word]; posting < postingStarts[word + 1]; posting++) {
+				if(deleted.get(postingLocations[posting])) {
+					continue;
+				}
+				if(!firstPosting) {
+					buffer.write(',');
+				}
+				firstPosting = false;
+				buffer.write(POSTING_START);
+				buffer.write(encoded[postingLocations[posting]]);
+				buffer.write(ARRAY_START);
+
+				for(int i = positionStarts[posting]; i < positionStarts[posting + 1]; i++) {
+					if(i > positionStarts[posting]) {
+						buffer.write(',');
+					}
+					buffer.write(POSITION_START);
+					buffer.writeInt(positions[i]);
+				}
+				buffer.write(ARRAY_END);
+			}
+			buffer.write(OBJECT_END);
+		}
+	}
+
+	/**
+	 * Writes all of a buffer to a channel
+	 * @param channel the channel
+	 * @param bytes the buffer
+	 * @throws IOException if unable to write
+	 */
+	private static void writeFully(FileChannel channel, ByteBuffer bytes) throws IOException {
+		while(bytes.hasRemaining()) {
+			channel.write(bytes);
+		}
+	}
+
+	/**
+	 * Writes the index in a compact binary form that {@link #read(DataInput)}
+	 * loads back without rebuilding anything. Deleted locations are purged
+	 * first.
+	 * @param out where to write
+	 * @throws IOException if an IO error occurs
+	 */
+	public void write(DataOutput out) throws IOException {
+		if(!deleted.isEmpty()) {
+			merge(List.of(this)).write(out);
+			return;
+		}
+
+		out.writeInt(MAGIC);
+		out.writeInt(words.length);
+		for(String word : words) {
+			out.writeUTF(word);
+		}
+
+		out.writeInt(locations.length);
+		for(int i = 0; i < locations.length; i++) {
+			out.writeUTF(locations[i]);
+			out.writeInt(lengths[i]);
+			out.writeBoolean(counted[i]);
+		}
+
+		writeArray(out, postingStarts);
+		writeArray(out, postingLocations);
+		writeArray(out, positionStarts);
+		writeArray(out, positions);
+	}
+
+	/**
+	 * Reads an index written by {@link #write(DataOutput)}
+	 * @param in where to read from
+	 * @return the index
+	 * @throws IOException if an IO error occurs or the input is not an index
+	 */
+	public static FrozenIndex read(DataInput in) throws IOException {
+		if(in.readInt() != MAGIC) {
+			throw new IOException("Not a packed index");
+		}
+
+		String[] words = new String[in.readInt()];
+		for(int i = 0; i < words.length; i++) {
+			words[i] = in.readUTF();
+		}
+
+		String[] locations = new String[in.readInt()];
+		int[] lengths = new int[locations.length];
+		boolean[] counted = new boolean[locations.length];
+
+		for(int i = 0; i < locations.length; i++) {
+			locations[i] = in.readUTF();
+			lengths[i] = in.readInt();
+			counted[i] = in.readBoolean();
+		}
+
+		return new FrozenIndex(words, locations, lengths, counted,
+				readArray(in), readArray(in), readArray(in), readArray(in));
+	}
+
+	/**
+	 * Writes an array of ints preceded by its length
+	 * @param out where to write
+	 * @param values the array
+	 * @throws IOException if an IO error occurs
+	 */
+	private static void writeArray(DataOutput out, int[] values) throws IOException {
+		out.writeInt(values.length);
+		for(int value : values) {
+			out.writeInt(value);
+		}
+	}
+
+	/**
+	 * Reads an array of ints written by {@link #writeArray(DataOutput, int[])}
+	 * @param in where to read from
+	 * @return the array
+	 * @throws IOException if an IO error occurs
+	 */
+	private static int[] readArray(DataInput in) throws IOException {
+		int[] values = new int[in.readInt()];
+		for(int i = 0; i < values.length; i++) {
+			values[i] = in.readInt();
+		}
+		return values;
+	}
+
+	/**
+	 * Merges several frozen indexes into one with a single ordered pass over
+	 * their words. Positions of a word at a location found in more than one
+	 * index are combined, and word counts of the same location are added.
+	 * Deleted locations are purged.
+	 * @param indexes the indexes to merge
+	 * @return the merged index
+	 */
+	public static FrozenIndex merge(List<FrozenIndex> indexes) {
+		TreeMap<String, Integer> counts = new TreeMap<>();
+
+		for(FrozenIndex index : indexes) {
+			for(int i = 0; i < index.locations.length; i++) {
+				if(index.counted[i] && !index.deleted.get(i)) {
+					counts.merge(index.locations[i], index.lengths[i], Integer::sum);
+				}
+			}
+		}
+
+		Builder builder = new Builder(counts);
+		int[] cursors = new int[indexes.size()];
+		PriorityQueue<Integer> queue = new PriorityQueue<>(
+				(a, b) -> indexes.get(a).words[cursors[a]].compareTo(indexes.get(b).words[cursors[b]]));
+
+		for(int i = 0; i < cursors.length; i++) {
+			if(indexes.get(i).words.length > 0) {
+				queue.add(i);
+			}
+		}
+
+		List<Integer> current = new ArrayList<>();
+		while(!queue.isEmpty()) {
+			current.clear();
+			int first = queue.poll();
+			String word = indexes.get(first).words[cursors[first]];
+			current.add(first);
+
+			while(!queue.isEmpty() && indexes.get(queue.peek()).words[cursors[queue.peek()]].equals(word)) {
+				current.add(queue.poll());
+			}
+
+			if(current.size() == 1) {
+				FrozenIndex index = indexes.get(first);
+				if(index.hasPostings(cursors[first])) {
+					builder.addWord(word);
+					index.copyPostings(cursors[first], builder);
+				}
+			}
+			else {
+				TreeMap<String, int[]> postings = new TreeMap<>();
+				for(int i : current) {
+					FrozenIndex index = indexes.get(i);
+					int ordinal = cursors[i];
+
+					for(int posting = index.postingStarts[ordinal]; posting < index.postingStarts[ordinal + 1]; posting++) {
+						if(index.deleted.get(index.postingLocations[posting])) {
+							continue;
+						}
+						int[] values = Arrays.copyOfRange(index.positions, index.positionStarts[posting], index.positionStarts[posting + 1]);
+						postings.merge(index.locations[index.postingLocations[posting]], values, FrozenIndex::union);
+					}
+				}
+				if(!postings.isEmpty()) {
+					builder.addWord(word);
+				}
+				for(var entry : postings.entrySet()) {
+					builder.addPosting(entry.getKey(), entry.getValue(), entry.getValue().length);
+				}
+			}
+
+			for(int i : current) {
+				if(++cursors[i] < indexes.get(i).words.length) {
+					queue.add(i);
+				}
+			}
+		}
+		return builder.build();
+	}
+
+	/**
+	 * Adds the postings of one word to a builder
+	 * @param word the ordinal of the word
+	 * @param builder the builder
+	 */
+	private void copyPostings(int word, Builder builder) {
+		for(int posting = postingStarts[word]; posting < postingStarts[word + 1]; posting++) {
+			if(deleted.get(postingLocations[posting])) {
+				continue;
+			}
+			builder.addPosting(locations[postingLocations[posting]], positions, positionStarts[posting], positionStarts[posting + 1]);
+		}
+	}
+
+	/**
+	 * Merges two sorted arrays of positions, dropping duplicates
+	 * @param first the first positions
+	 * @param second the second positions
+	 * @return the sorted union
+	 */
+	public static int[] union(int[] first, int[] second) {
+		int[] merged = new int[first.length + second.length];
+		int i = 0;
+		int j = 0;
+		int size = 0;
+
+		while(i < first.length || j < second.length) {
+			int next;
+			if(j == second.length || (i < first.length && first[i] <= second[j])) {
+				next = first[i++];
+			}
+			else {
+				next = second[j++];
+			}
+
+			if(size == 0 || merged[size - 1] != next) {
+				merged[size++] = next;
+			}
+		}
+		return Arrays.copyOf(merged, size);
+	}
+
+	/**
+	 * Builds a frozen index directly from words added in sorted order, without
+	 * creating the nested maps first. All locations must be known up front.
+	 * @author angelarichards261
+	 */
+	public static class Builder {
+
+		/** The sorted locations */
+		private final String[] locations;
+
+		/** The word count of each location */
+		private final int[] lengths;
+
+		/** The words added so far */
+		private final List<String> words;
+
+		/** Where the postings of each word start */
+		private int[] postingStarts;
+
+		/** The location id of each posting */
+		private int[] postingLocations;
+
+		/** Where the positions of each posting start */
+		private int[] positionStarts;
+
+		/** The positions of every posting */
+		private int[] positions;
+
+		/** The number of postings added so far */
+		private int postings;
+
+		/** The number of positions added so far */
+		private int size;
+
+		/**
+		 * Initializes a builder for the given locations
+		 * @param counts the word count of every location, sorted by location
+		 */
+		public Builder(TreeMap<String, Integer> counts) {
+			this.locations = counts.keySet().toArray(new String[0]);
+			this.lengths = new int[locations.length];
+			this.words = new ArrayList<>();
+			this.postingStarts = new int[16];
+			this.postingLocations = new int[16];
+			this.positionStarts = new int[16];
+			this.positions = new int[1024];
+			this.postings = 0;
+			this.size = 0;
+
+			int i = 0;
+			for(int length : counts.values()) {
+				lengths[i++] = length;
+			}
+		}
+
+		/**
+		 * Starts the postings of the next word, which must sort after the
+		 * previous word
+		 * @param word the word
+		 */
+		public void addWord(String word) {
+			if(!words.isEmpty() && words.get(words.size() - 1).compareTo(word) >= 0) {
+				throw new IllegalArgumentException("Words must be added in sorted order: " + word);
+			}
+			if(words.size() + 1 >= postingStarts.length) {
+				postingStarts = Arrays.copyOf(postingStarts, postingStarts.length * 2);
+			}
+			postingStarts[words.size()] = postings;
+			words.add(word);
+		}
+
+		/**
+		 * Adds the positions of the current word at a location. Locations must be
+		 * added in sorted order within each word.
+		 * @param location the location
+		 * @param values the sorted positions
+		 * @param count the number of positions to use from values
+		 */
+		public void addPosting(String location, int[] values, int count) {
+			addPosting(location, values, 0, count);
+		}
+
+		/**
+		 * Adds the positions of the current word at a location, taken from a
+		 * range of an array. Locations must be added in sorted order within each
+		 * word.
+		 * @param location the location
+		 * @param values the array holding the sorted positions
+		 * @param from the first index of the positions in values
+		 * @param to one past the last index of the positions in values
+		 */
+		public void addPosting(String location, int[] values, int from, int to) {
+			int count = to - from;
+			int id = Arrays.binarySearch(locations, location);
+			if(id < 0) {
+				throw new IllegalArgumentException("Unknown location: " + location);
+			}
+			if(postings + 1 >= postingLocations.length) {
+				postingLocations = Arrays.copyOf(postingLocations, postingLocations.length * 2);
+				positionStarts = Arrays.copyOf(positionStarts, positionStarts.length * 2);
+			}
+			while(size + count > positions.length) {
+				positions = Arrays.copyOf(positions, positions.length * 2);
+			}
+			postingLocations[postings] = id;
+			positionStarts[postings++] = size;
+			System.arraycopy(values, from, positions, size, count);
+			size += count;
+		}
+
+		/**
+		 * Finishes the index
+		 * @return the frozen index
+		 */
+		public FrozenIndex build() {
+			postingStarts[words.size()] = postings;
+			positionStarts[postings] = size;
+
+			boolean[] counted = new boolean[locations.length];
+			Arrays.fill(counted, true);
+
+			return new FrozenIndex(words.toArray(new String[0]), locations, lengths, counted,
+					Arrays.copyOf(postingStarts, words.size() + 1), Arrays.copyOf(postingLocations, postings),
+					Arrays.copyOf(positionStarts, postings + 1), Arrays.copyOf(positions, size));
+		}
+	}
+
+	/**
+	 * Growable byte buffer a range of the JSON is rendered into
+	 * @author angelarichards261
+	 */
+	private static class JSONBuffer {
+
+		/** The bytes, of which only the first size are used */
+		private byte[] bytes = new byte[1 << 16];
+
+		/** Number of bytes used */
+		private int size = 0;
+
+		/**
+		 * Makes room for more bytes
+		 * @param more the number of bytes about to be written
+		 */
+		private void ensure(int more) {
+			if(size + more > bytes.length) {
+				bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + more));
+			}
+		}
+
+		/**
+		 * Writes one byte
+		 * @param b the byte
+		 */
+		public void write(int b) {
+			ensure(1);
+			bytes[size++] = (byte) b;
+		}
+
+		/**
+		 * Writes some bytes
+		 * @param more the bytes
+		 */
+		public void write(byte[] more) {
+			ensure(more.length);
+			System.arraycopy(more, 0, bytes, size, more.length);
+			size += more.length;
+		}
+
+		/**
+		 * Writes a number in decimal without making a string of it
+		 * @param value the number
+		 */
+		public void writeInt(int value) {
+			if(value < 0) {
+				write(Integer.toString(value).getBytes(StandardCharsets.US_ASCII));
+				return;
+			}
+
+			int digits = 1;
+			for(int rest = value / 10; rest > 0; rest /= 10) {
+				digits++;
+			}
+
+			ensure(digits);
+			for(int i = size + digits - 1; i >= size; i--) {
+				bytes[i] = (byte) ('0' + value % 10);
+				value /= 10;
+			}
+			size += digits;
+		}
+	}
+
+	/**
+	 * The postings of every word a prefix matches, merged into one count per
+	 * location in the order the locations are first found
+	 * @author angelarichards261
+	 */
+	private static class Expansion {
+
+		/** The location ids, in the order first found */
+		private final int[] ids;
+
+		/** The number of positions at each location */
+		private final long[] counts;
+
+		/**
+		 * Constructor for the merged postings
+		 * @param touched the location ids in the order first found
+		 * @param counts the number of positions at each location, indexed by id
+		 * @param size the number of ids in touched
+		 */
+		public Expansion(int[] touched, long[] counts, int size) {
+			this.ids = Arrays.copyOf(touched, size);
+			this.counts = new long[size];
+			for(int i = 0; i < size; i++) {
+				this.counts[i] = counts[ids[i]];
+			}
+		}
+
+		/**
+		 * Adds the merged postings to the running counts, as
+		 * {@link FrozenIndex#accumulate(int, long[], int[], int)} does for each word
+		 * @param running the running count of each location, indexed by id
+		 * @param touched the ids of the locations with a count so far
+		 * @param size the number of ids in touched
+		 * @return the new number of ids in touched
+		 */
+		public int accumulate(long[] running, int[] touched, int size) {
+			for(int i = 0; i < ids.length; i++) {
+				int location = ids[i];
+				if(running[location] == 0) {
+					touched[size++] = location;
+				}
+				running[location] += counts[i];
+			}
+			return size;
+		}
+	}
+
+	/**
+	 * Runnable that renders one range of words into a buffer
+	 * @author angelarichards261
+	 */
+	private class RenderTasks implements Runnable {
+
+		/** The first word */
+		private final int from;
+
+		/** The word after the last */
+		private final int to;
+
+		/** The first word with a posting in the whole index */
+		private final int first;
+
+		/** The UTF-8 bytes of every location */
+		private final byte[][] encoded;
+
+		/** Where to render */
+		private final JSONBuffer buffer;
+
+		/** Counted down once the range is rendered or rendering failed */
+		private final CountDownLatch done;
+
+		/** What went wrong while rendering, or null */
+		private volatile RuntimeException failure;
+
+		/**
+		 * Constructor for the render task
+		 * @param from the first word
+		 * @param to the word after the last
+		 * @param first the first word with a posting in the whole index
+		 * @param encoded the UTF-8 bytes of every location
+		 * @param buffer where to render
+		 */
+		public RenderTasks(int from, int to, int first, byte[][] encoded, JSONBuffer buffer) {
+			this.from = from;
+			this.to = to;
+			this.first = first;
+			this.encoded = encoded;
+			this.buffer = buffer;
+			this.done = new CountDownLatch(1);
+			this.failure = null;
+		}
+
+		@Override
+		public void run() {
+			try {
+				render(from, to, first, encoded, buffer);
+			}
+			catch(RuntimeException e) {
+				failure = e;
+			}
+			finally {
+				done.countDown();
+			}
+		}
+
+		/**
+		 * Waits for the range to be rendered
+		 * @return the buffer holding it
+		 * @throws IOException if rendering failed or the wait was interrupted
+		 */
+		public JSONBuffer await() throws IOException {
+			try {
+				done.await();
+			}
+			catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while writing the index");
+			}
+			if(failure != null) {
+				throw new IOException("Unable to render words " + from + " to " + to, failure);
+			}
+			return buffer;
+		}
+
+		/**
+		 * Waits for the range to be rendered, ignoring how it went
+		 */
+		public void awaitQuietly() {
+			try {
+				done.await();
+			}
+			catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+}
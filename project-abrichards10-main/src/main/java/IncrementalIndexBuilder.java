@@ -0,0 +1,345 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitOption;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Builds an inverted index from a directory by re-indexing only what changed
+ * since the last run. The previous index is saved in packed form next to a
+ * manifest of the size, modification time and content hash of every file it
+ * holds. Files whose size and time match are skipped without being read,
+ * files whose content hash still matches are skipped after hashing, changed
+ * files are replaced, new files are added and missing files are removed.
+ *
+ * @author angelarichards261
+ */
+public class IncrementalIndexBuilder extends InvertedIndexBuilder {
+
+	/** Name of the manifest file in the state directory */
+	public static final String MANIFEST = "manifest.tsv";
+
+	/** Name of the saved index in the state directory */
+	public static final String INDEX = "index.bin";
+
+	/** Logger for the summary of each run */
+	private static final Logger log = LogManager.getLogger();
+
+	/** The index being updated */
+	private final InvertedIndex invertedIndex;
+
+	/** The queue files are re-indexed on, or null to re-index on the caller */
+	private final WorkQueue queue;
+
+	/** The directory holding the manifest and the saved index */
+	private final Path directory;
+
+	/** The manifest entry of every file indexed in this run */
+	private final ConcurrentHashMap<String, Entry> manifest;
+
+	/** Files skipped because they did not change */
+	private final AtomicInteger unchanged;
+
+	/** Files re-indexed because their content changed */
+	private final AtomicInteger changed;
+
+	/** Files indexed for the first time */
+	private final AtomicInteger added;
+
+	/** Files removed because they no longer exist */
+	private final AtomicInteger removed;
+
+	/**
+	 * Constructor for the incremental builder
+	 * @param invertedIndex the index to update, which must be thread-safe if a queue is given
+	 * @param queue the queue to re-index files on, or null to re-index on the caller
+	 * @param directory the directory holding the manifest and the saved index
+	 */
+	public IncrementalIndexBuilder(InvertedIndex invertedIndex, WorkQueue queue, Path directory) {
+		super(invertedIndex);
+		this.invertedIndex = invertedIndex;
+		this.queue = queue;
+		this.directory = directory;
+		this.manifest = new ConcurrentHashMap<>();
+		this.unchanged = new AtomicInteger();
+		this.changed = new AtomicInteger();
+		this.added = new AtomicInteger();
+		this.removed = new AtomicInteger();
+	}
+
+	@Override
+	public void traverseDirectory(Path path) throws IOException {
+		Map<String, Entry> previous = load();
+		Set<String> seen = new HashSet<>();
+
+		try(Stream<Path> subPaths = Files.walk(path, FileVisitOption.FOLLOW_LINKS)) {
+			var iterator = subPaths.iterator();
+
+			while(iterator.hasNext()) {
+				Path file = iterator.next();
+
+				if(file.equals(path) && Files.isRegularFile(path) || isText(file)) {
+					seen.add(file.toString());
+					check(file, previous.get(file.toString()));
+				}
+			}
+		}
+
+		if(queue != null) {
+			queue.finish();
+		}
+
+		for(String location : previous.keySet()) {
+			if(!seen.contains(location)) {
+				invertedIndex.removeDocument(location);
+				removed.incrementAndGet();
+			}
+		}
+
+		save();
+		log.info("Incremental index: {} unchanged, {} changed, {} added, {} removed",
+				unchanged.get(), changed.get(), added.get(), removed.get());
+	}
+
+	/**
+	 * Skips a file whose size and modification time match the manifest, and
+	 * otherwise hashes and re-indexes it on the queue
+	 * @param file the file
+	 * @param entry the manifest entry from the last run, or null if it is new
+	 * @throws IOException if unable to read the file attributes
+	 */
+	private void check(Path file, Entry entry) throws IOException {
+		long size = Files.size(file);
+		long modified = Files.getLastModifiedTime(file).toMillis();
+
+		if(entry != null && entry.size == size && entry.modified == modified) {
+			manifest.put(file.toString(), entry);
+			unchanged.incrementAndGet();
+		}
+		else if(queue != null) {
+			queue.execute(new IncrementalTasks(file, entry, size, modified));
+		}
+		else {
+			update(file, entry, size, modified);
+		}
+	}
+
+	/**
+	 * Re-indexes a file unless its content hash matches the manifest
+	 * @param file the file
+	 * @param entry the manifest entry from the last run, or null if it is new
+	 * @param size the size of the file
+	 * @param modified the modification time of the file
+	 * @throws IOException if unable to read the file
+	 */
+	private void update(Path file, Entry entry, long size, long modified) throws IOException {
+		String location = file.toString();
+		String hash = hash(file);
+
+		if(entry != null && entry.hash.equals(hash)) {
+			unchanged.incrementAndGet();
+		}
+		else {
+			InvertedIndex document = new InvertedIndex();
+			addPath(file, document);
+
+			if(entry == null) {
+				invertedIndex.addAll(document);
+				added.incrementAndGet();
+			}
+			else {
+				invertedIndex.replaceDocument(location, document);
+				changed.incrementAndGet();
+			}
+		}
+		manifest.put(location, new Entry(size, modified, hash));
+	}
+
+	/**
+	 * Loads the manifest and the saved index from the last run. If either is
+	 * missing or unreadable, nothing is loaded and every file is indexed.
+	 * @return the manifest entries from the last run
+	 */
+	private Map<String, Entry> load() {
+		Path manifestPath = directory.resolve(MANIFEST);
+		Path indexPath = directory.resolve(INDEX);
+
+		if(!Files.isRegularFile(manifestPath) || !Files.isRegularFile(indexPath)) {
+			return Map.of();
+		}
+
+		try {
+			Map<String, Entry> previous = new HashMap<>();
+
+			try(BufferedReader reader = Files.newBufferedReader(manifestPath, StandardCharsets.UTF_8)) {
+				String line;
+				while((line = reader.readLine()) != null) {
+					String[] fields = line.split("\t");
+					previous.put(fields[0], new Entry(Long.parseLong(fields[1]), Long.parseLong(fields[2]), fields[3]));
+				}
+			}
+
+			try(DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexPath), 1 << 16))) {
+				invertedIndex.addAll(FrozenIndex.read(in));
+			}
+			return previous;
+		}
+		catch(IOException | RuntimeException e) {
+			System.out.println("Unable to load the saved index, indexing every file");
+			return Map.of();
+		}
+	}
+
+	/**
+	 * Saves the index and the manifest for the next run. Each file is written
+	 * next to its destination first and then moved into place, so an
+	 * interrupted save leaves the previous files intact.
+	 * @throws IOException if unable to write the files
+	 */
+	private void save() throws IOException {
+		Files.createDirectories(directory);
+		Path indexPath = directory.resolve(INDEX);
+		Path manifestPath = directory.resolve(MANIFEST);
+		Path temp = directory.resolve(INDEX + ".tmp");
+
+		try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp), 1 << 16))) {
+			invertedIndex.pack().write(out);
+		}
+		Files.move(temp, indexPath, StandardCopyOption.REPLACE_EXISTING);
+
+		temp = directory.resolve(MANIFEST + ".tmp");
+		try(BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+			for(var entry : new TreeMap<>(manifest).entrySet()) {
+				Entry value = entry.getValue();
+				writer.write(entry.getKey() + "\t" + value.size + "\t" + value.modified + "\t" + value.hash);
+				writer.newLine();
+			}
+		}
+		Files.move(temp, manifestPath, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/**
+	 * Returns the SHA-256 hash of the contents of a file
+	 * @param file the file
+	 * @return the hash in hexadecimal
+	 * @throws IOException if unable to read the file
+	 */
+	public static String hash(Path file) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		}
+		catch(NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+
+		try(InputStream in = Files.newInputStream(file)) {
+			byte[] buffer = new byte[1 << 16];
+			int read;
+			while((read = in.read(buffer)) > 0) {
+				digest.update(buffer, 0, read);
+			}
+		}
+
+		StringBuilder hex = new StringBuilder();
+		for(byte b : digest.digest()) {
+			hex.append(String.format("%02x", b));
+		}
+		return hex.toString();
+	}
+
+	/**
+	 * What the manifest records about one file
+	 */
+	private static class Entry {
+		/** The size of the file in bytes */
+		private final long size;
+
+		/** The modification time of the file in milliseconds */
+		private final long modified;
+
+		/** The SHA-256 hash of the contents of the file */
+		private final String hash;
+
+		/**
+		 * Initializes the entry
+		 * @param size the size of the file
+		 * @param modified the modification time of the file
+		 * @param hash the hash of the contents of the file
+		 */
+		public Entry(long size, long modified, String hash) {
+			this.size = size;
+			this.modified = modified;
+			this.hash = hash;
+		}
+	}
+
+	/**
+	 * Inner Tasks class that re-indexes one file
+	 * @author angelarichards261
+	 */
+	private class IncrementalTasks implements Runnable {
+
+		/** The file to check */
+		private final Path file;
+
+		/** The manifest entry from the last run, or null */
+		private final Entry entry;
+
+		/** The size of the file */
+		private final long size;
+
+		/** The modification time of the file */
+		private final long modified;
+
+		/**
+		 * Constructor for the task
+		 * @param file the file to check
+		 * @param entry the manifest entry from the last run, or null
+		 * @param size the size of the file
+		 * @param modified the modification time of the file
+		 */
+		public IncrementalTasks(Path file, Entry entry, long size, long modified) {
+			this.file = file;
+			this.entry = entry;
+			this.size = size;
+			this.modified = modified;
+		}
+
+		@Override
+		public void run() {
+			try {
+				update(file, entry, size, modified);
+			}
+			catch(IOException e) {
+				System.out.println("Unable to re-index " + file);
+
+				if(entry != null) {
+					// keep the old entry so the next run tries the file again
+					manifest.put(file.toString(), entry);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,405 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Loads an index back from the JSON written by {@code -index}, and the word
+ * counts from the JSON written by {@code -counts}. The file is read one token
+ * at a time straight from its bytes, and the words, locations and positions
+ * go directly into a {@link FrozenIndex.Builder}, so no tree of JSON values
+ * or nested maps is ever built.
+ *
+ * The builder needs every location up front. With a counts file they come
+ * from there, and otherwise the index file is read twice, once to count the
+ * positions of every location and once to build the index.
+ *
+ * @author angelarichards261
+ */
+public class IndexJSONReader implements Closeable {
+
+	/** The file being read, for error messages */
+	private final Path path;
+
+	/** The stream the file is read from */
+	private final InputStream in;
+
+	/** The bytes read and not yet used */
+	private final byte[] buffer;
+
+	/** The next byte to use in the buffer */
+	private int position;
+
+	/** The number of bytes in the buffer */
+	private int limit;
+
+	/** The number of bytes used before the start of the buffer */
+	private long offset;
+
+	/** The bytes of the string being read */
+	private byte[] text;
+
+	/** The positions of the location being read */
+	private int[] values;
+
+	/**
+	 * Opens a JSON file
+	 * @param path the file
+	 * @throws IOException if unable to open the file
+	 */
+	public IndexJSONReader(Path path) throws IOException {
+		this.path = path;
+		this.in = Files.newInputStream(path);
+		this.buffer = new byte[1 << 16];
+		this.position = 0;
+		this.limit = 0;
+		this.offset = 0;
+		this.text = new byte[256];
+		this.values = new int[1024];
+	}
+
+	/**
+	 * Loads an index written by {@code -index}
+	 * @param index the index file
+	 * @param counts the counts file, or null to count the positions in the index file
+	 * @return the index
+	 * @throws IOException if unable to read a file or it is not in the expected format
+	 */
+	public static FrozenIndex read(Path index, Path counts) throws IOException {
+		TreeMap<String, Integer> lengths;
+
+		if(counts != null) {
+			try(IndexJSONReader reader = new IndexJSONReader(counts)) {
+				lengths = reader.readCounts();
+			}
+		}
+		else {
+			Map<String, Integer> found = new HashMap<>();
+			try(IndexJSONReader reader = new IndexJSONReader(index)) {
+				reader.readIndex(null, found);
+			}
+			lengths = new TreeMap<>(found);
+		}
+
+		FrozenIndex.Builder builder = new FrozenIndex.Builder(lengths);
+		try(IndexJSONReader reader = new IndexJSONReader(index)) {
+			reader.readIndex(builder, null);
+		}
+		catch(IllegalArgumentException e) {
+			throw new IOException("Unable to load " + index + ": " + e.getMessage(), e);
+		}
+		return builder.build();
+	}
+
+	/**
+	 * Reads a JSON object of locations and word counts
+	 * @return the word count of every location, sorted by location
+	 * @throws IOException if unable to read the file or it is not in the expected format
+	 */
+	public TreeMap<String, Integer> readCounts() throws IOException {
+		TreeMap<String, Integer> counts = new TreeMap<>();
+		expect('{');
+
+		if(!skip('}')) {
+			do {
+				String location = readString();
+				expect(':');
+				counts.put(location, readInt());
+			} while(skip(','));
+			expect('}');
+		}
+
+		end();
+		return counts;
+	}
+
+	/**
+	 * Reads a JSON object of words, each an object of locations, each an array
+	 * of positions. Either adds it all to a builder, or only counts the
+	 * positions of each location.
+	 * @param builder where to add the index, or null to only count
+	 * @param counts where to count the positions of each location, or null
+	 * @throws IOException if unable to read the file or it is not in the expected format
+	 */
+	public void readIndex(FrozenIndex.Builder builder, Map<String, Integer> counts) throws IOException {
+		expect('{');
+		if(skip('}')) {
+			end();
+			return;
+		}
+
+		do {
+			String word = readString();
+			boolean added = false;
+			expect(':');
+			expect('{');
+
+			if(!skip('}')) {
+				do {
+					String location = readString();
+					expect(':');
+					int size = readPositions();
+
+					if(size == 0) {
+						continue;
+					}
+					if(counts != null) {
+						counts.merge(location, size, Integer::sum);
+					}
+					if(builder != null) {
+						// a word is only added once it has a posting, like an index built from files
+						if(!added) {
+							builder.addWord(word);
+							added = true;
+						}
+						builder.addPosting(location, values, size);
+					}
+				} while(skip(','));
+				expect('}');
+			}
+		} while(skip(','));
+
+		expect('}');
+		end();
+	}
+
+	/**
+	 * Reads a JSON array of whole numbers into {@link #values}
+	 * @return the number of values
+	 * @throws IOException if unable to read the file or it is not in the expected format
+	 */
+	private int readPositions() throws IOException {
+		expect('[');
+		if(skip(']')) {
+			return 0;
+		}
+
+		int size = 0;
+		do {
+			if(size == values.length) {
+				values = Arrays.copyOf(values, size * 2);
+			}
+			values[size++] = readInt();
+		} while(skip(','));
+
+		expect(']');
+		return size;
+	}
+
+	/**
+	 * Reads a whole number that fits in an int
+	 * @return the number
+	 * @throws IOException if unable to read the file or it is not a number
+	 */
+	private int readInt() throws IOException {
+		int next = peek();
+		boolean negative = next == '-';
+		if(negative) {
+			position++;
+			next = peek();
+		}
+		if(next < '0' || next > '9') {
+			throw error("a number");
+		}
+
+		long value = 0;
+		while(next >= '0' && next <= '9') {
+			value = value * 10 + (next - '0');
+			if(value > (long) Integer.MAX_VALUE + 1) {
+				throw error("a smaller number");
+			}
+			position++;
+			next = fill() ? buffer[position] : -1;
+		}
+
+		value = negative ? -value : value;
+		if(value > Integer.MAX_VALUE) {
+			throw error("a smaller number");
+		}
+		return (int) value;
+	}
+
+	/**
+	 * Reads a JSON string
+	 * @return the string
+	 * @throws IOException if unable to read the file or it is not a string
+	 */
+	private String readString() throws IOException {
+		expect('"');
+		int size = 0;
+
+		while(true) {
+			if(!fill()) {
+				throw error("the end of a string");
+			}
+			byte b = buffer[position++];
+
+			if(b == '"') {
+				return new String(text, 0, size, StandardCharsets.UTF_8);
+			}
+			if(size + 4 > text.length) {
+				text = Arrays.copyOf(text, text.length * 2);
+			}
+			if(b != '\\') {
+				text[size++] = b;
+				continue;
+			}
+
+			if(!fill()) {
+				throw error("an escape");
+			}
+			b = buffer[position++];
+			switch(b) {
+				case '"': case '\\': case '/': text[size++] = b; break;
+				case 'b': text[size++] = '\b'; break;
+				case 'f': text[size++] = '\f'; break;
+				case 'n': text[size++] = '\n'; break;
+				case 'r': text[size++] = '\r'; break;
+				case 't': text[size++] = '\t'; break;
+				case 'u': size = appendCodePoint(size, readUnicode()); break;
+				default: throw error("an escape");
+			}
+		}
+	}
+
+	/**
+	 * Reads the code point of a {@code \\u} escape, and of the low surrogate
+	 * escape after it if it is a high surrogate
+	 * @return the code point
+	 * @throws IOException if unable to read the file or the escape is invalid
+	 */
+	private int readUnicode() throws IOException {
+		char high = readHex();
+		if(!Character.isHighSurrogate(high)) {
+			return high;
+		}
+
+		expect('\\');
+		if(!fill() || buffer[position++] != 'u') {
+			throw error("a low surrogate");
+		}
+		char low = readHex();
+		if(!Character.isLowSurrogate(low)) {
+			throw error("a low surrogate");
+		}
+		return Character.toCodePoint(high, low);
+	}
+
+	/**
+	 * Reads the four hexadecimal digits of a {@code \\u} escape
+	 * @return the character
+	 * @throws IOException if unable to read the file or the digits are invalid
+	 */
+	private char readHex() throws IOException {
+		int value = 0;
+		for(int i = 0; i < 4; i++) {
+			int digit = fill() ? Character.digit(buffer[position++], 16) : -1;
+			if(digit < 0) {
+				throw error("a hexadecimal digit");
+			}
+			value = value * 16 + digit;
+		}
+		return (char) value;
+	}
+
+	/**
+	 * Adds a code point to the string being read as UTF-8
+	 * @param size the number of bytes so far
+	 * @param codePoint the code point
+	 * @return the new number of bytes
+	 */
+	private int appendCodePoint(int size, int codePoint) {
+		byte[] bytes = new String(Character.toChars(codePoint)).getBytes(StandardCharsets.UTF_8);
+		System.arraycopy(bytes, 0, text, size, bytes.length);
+		return size + bytes.length;
+	}
+
+	/**
+	 * Skips whitespace and then reads the given character
+	 * @param expected the character
+	 * @throws IOException if unable to read the file or the next character is different
+	 */
+	private void expect(char expected) throws IOException {
+		if(peek() != expected) {
+			throw error("'" + expected + "'");
+		}
+		position++;
+	}
+
+	/**
+	 * Skips whitespace and then the given character if it is next
+	 * @param expected the character
+	 * @return true if it was skipped
+	 * @throws IOException if unable to read the file
+	 */
+	private boolean skip(char expected) throws IOException {
+		if(peek() == expected) {
+			position++;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Makes sure only whitespace is left in the file
+	 * @throws IOException if unable to read the file or something else is left
+	 */
+	private void end() throws IOException {
+		if(peek() != -1) {
+			throw error("the end of the file");
+		}
+	}
+
+	/**
+	 * Skips whitespace and returns the next byte without using it
+	 * @return the next byte, or -1 at the end of the file
+	 * @throws IOException if unable to read the file
+	 */
+	private int peek() throws IOException {
+		while(fill()) {
+			byte b = buffer[position];
+			if(b != ' ' && b != '\n' && b != '\t' && b != '\r') {
+				return b;
+			}
+			position++;
+		}
+		return -1;
+	}
+
+	/**
+	 * Makes sure the buffer has at least one byte left, reading more of the
+	 * file if needed
+	 * @return false at the end of the file
+	 * @throws IOException if unable to read the file
+	 */
+	private boolean fill() throws IOException {
+		if(position < limit) {
+			return true;
+		}
+
+		offset += limit;
+		position = 0;
+		limit = Math.max(0, in.read(buffer));
+		return limit > 0;
+	}
+
+	/**
+	 * Makes an exception for unexpected input
+	 * @param expected what was expected
+	 * @return the exception
+	 */
+	private IOException error(String expected) {
+		return new IOException("Expected " + expected + " at byte " + (offset + position) + " of " + path);
+	}
+
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+}
@@ -1,11 +1,15 @@
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.function.BiConsumer;
 
 import java.io.IOException;
 import java.io.Writer;
@@ -18,11 +22,26 @@ import java.nio.file.Path;
  */
 public class InvertedIndex {
 
+	/** Most searches run together by one batch search task **/
+	public static final int BATCH_QUERIES = 64;
+	
+	/** The counts left behind by the last search of a frozen index on each thread **/
+	private static final ThreadLocal<Accumulator> ACCUMULATORS = new ThreadLocal<>();
+	
 	/** The Map which stores the invertedIndex **/
 	private final TreeMap<String, TreeMap<String, TreeSet<Integer>>> invertedIndex;
 	
 	/** The count we store in a TreeMap **/ 
 	private final TreeMap<String, Integer> countMap; 
+	
+	/** Most positions added to a frozen index, as a fraction of its own, before they are packed into it **/
+	public static final int DELTA_FRACTION = 8;
+	
+	/** The packed read-only form of the index, or null while it is mutable **/
+	private FrozenIndex frozen;
+	
+	/** Counts the changes to the index, so cached search results can tell they are stale **/
+	private volatile long generation;
 
 	/**
 	 * Constructor that initializes both Maps
@@ -30,6 +49,133 @@ public class InvertedIndex {
 	public InvertedIndex() { 
 		invertedIndex = new TreeMap<>();
 		countMap = new TreeMap<>(); 
+		frozen = null;
+		generation = 0;
+	}
+	
+	/**
+	 * Packs the index into a read-only {@link FrozenIndex} and releases the
+	 * maps, which cuts the heap used by the index and speeds up searches.
+	 * Documents added to a frozen index at new locations are kept in the maps
+	 * beside it, so the update costs the size of the document, and they are
+	 * packed into it once they pass {@link #DELTA_FRACTION} of its positions
+	 * or the index is frozen again. Adding to a location already packed
+	 * unpacks the whole index first.
+	 */
+	public void freeze() {
+		if(frozen == null) {
+			frozen = new FrozenIndex(invertedIndex, countMap);
+			invertedIndex.clear();
+			countMap.clear();
+		}
+		else if(hasDelta()) {
+			frozen = packed();
+			invertedIndex.clear();
+			countMap.clear();
+		}
+	}
+	
+	/**
+	 * Returns the index packed into a {@link FrozenIndex}, leaving this index
+	 * as it is
+	 * @return the packed index
+	 */
+	public FrozenIndex pack() {
+		return packed();
+	}
+	
+	/**
+	 * Packs the index without going through {@link #pack()}, so a subclass
+	 * that locks it is not locked again from inside
+	 * @return the packed index
+	 */
+	private FrozenIndex packed() {
+		if(frozen == null) {
+			return new FrozenIndex(invertedIndex, countMap);
+		}
+		return hasDelta() ? FrozenIndex.merge(List.of(frozen, new FrozenIndex(invertedIndex, countMap))) : frozen;
+	}
+	
+	/**
+	 * Returns the packed read-only form of the index. It never changes, so it
+	 * can be read while a writer replaces it, as long as the read is thrown
+	 * away if a writer was active.
+	 * @return the frozen index, or null if the index is in its map form or
+	 * has documents added beside it
+	 */
+	FrozenIndex frozen() {
+		return hasDelta() ? null : frozen;
+	}
+	
+	/**
+	 * Returns true if the index is frozen and has documents added since,
+	 * which are kept in the maps until they are packed
+	 * @return true if the maps hold documents beside the frozen index
+	 */
+	private boolean hasDelta() {
+		return frozen != null && (!invertedIndex.isEmpty() || !countMap.isEmpty());
+	}
+	
+	/**
+	 * Packs the documents added beside a frozen index into it once they
+	 * pass {@link #DELTA_FRACTION} of its positions
+	 */
+	private void packDelta() {
+		if(!hasDelta()) {
+			return;
+		}
+		
+		long positions = 0;
+		for(int count : countMap.values()) {
+			positions += count;
+		}
+		if(positions * DELTA_FRACTION >= frozen.positionCount()) {
+			frozen = packed();
+			invertedIndex.clear();
+			countMap.clear();
+		}
+	}
+	
+	/**
+	 * Returns true if the index is in its packed read-only form
+	 * @return true if the index is frozen
+	 */
+	public boolean isFrozen() {
+		return frozen != null;
+	}
+	
+	/**
+	 * Returns the number of changes made to the index so far. Searches made
+	 * at the same generation see the same contents.
+	 * @return the generation of the index
+	 */
+	public long generation() {
+		return generation;
+	}
+	
+	/**
+	 * Moves the index to the next generation after a change. Callers change
+	 * the index under its write lock, if it has one.
+	 */
+	protected void changed() {
+		generation++;
+	}
+	
+	/**
+	 * Unpacks a frozen index back into maps so it can be modified
+	 */
+	private void thaw() {
+		if(frozen != null) {
+			TreeMap<String, TreeMap<String, TreeSet<Integer>>> delta = new TreeMap<>(invertedIndex);
+			TreeMap<String, Integer> counts = new TreeMap<>(countMap);
+			invertedIndex.clear();
+			countMap.clear();
+			
+			frozen.thaw(invertedIndex, countMap);
+			frozen = null;
+			merge(invertedIndex, delta, (locations, other) -> merge(locations, other, Set::addAll));
+			countMap.putAll(counts);
+		}
 	}
 	
 	/**
@@ -39,6 +185,21 @@ public class InvertedIndex {
 	 * @param pos the position it goes in
 	 */
 	public void addElement(String word, String path, int pos) { 
+		add(word, path, pos);
+		changed();
+	}
+	
+	/**
+	 * Adds an element without moving to the next generation, so adding many
+	 * words only does so once
+	 * @param word the word we are adding
+	 * @param path the path it will be linked to
+	 * @param pos the position it goes in
+	 */
+	private void add(String word, String path, int pos) {
+		if(frozen != null && frozen.hasLocation(path)) {
+			thaw();
+		}
 		invertedIndex.putIfAbsent(word, new TreeMap<String, TreeSet<Integer>>());
 		invertedIndex.get(word).putIfAbsent(path, new TreeSet<Integer>());
 		boolean modified = invertedIndex.get(word).get(path).add(pos);
@@ -68,11 +229,94 @@ public class InvertedIndex {
 	 */
 	public void addAll(String[] words, int start, String name) {
 		for(int i = 0; i < words.length; i++) {
-			addElement(words[i], name, start);
+			add(words[i], name, start);
 			start++;
 		}
+		changed();
+		packDelta();
 	}
 
+	/**
+	 * Removes a document and all of its positions. A frozen index only marks
+	 * the location as deleted, which searches skip and thawing purges, so the
+	 * removal does not depend on the size of the index. The maps are only
+	 * scanned if they hold the location.
+	 * @param location the location of the document
+	 */
+	public void removeDocument(String location) {
+		changed();
+		
+		if(frozen != null) {
+			frozen = frozen.delete(location);
+		}
+		
+		if(countMap.remove(location) == null) {
+			return;
+		}
+		Iterator<TreeMap<String, TreeSet<Integer>>> iterator = invertedIndex.values().iterator();
+		
+		while(iterator.hasNext()) {
+			TreeMap<String, TreeSet<Integer>> locations = iterator.next();
+			if(locations.remove(location) != null && locations.isEmpty()) {
+				iterator.remove();
+			}
+		}
+	}
+	
+	/**
+	 * Removes every document whose location starts with a prefix, such as
+	 * the documents under a deleted directory
+	 * @param prefix the start of the locations to remove
+	 */
+	public void removeDocuments(String prefix) {
+		changed();
+		
+		if(frozen != null) {
+			for(String location : frozen.getCount().keySet()) {
+				if(location.startsWith(prefix)) {
+					frozen = frozen.delete(location);
+				}
+			}
+		}
+		
+		if(!countMap.keySet().removeIf(location -> location.startsWith(prefix))) {
+			return;
+		}
+		Iterator<TreeMap<String, TreeSet<Integer>>> iterator = invertedIndex.values().iterator();
+		
+		while(iterator.hasNext()) {
+			TreeMap<String, TreeSet<Integer>> locations = iterator.next();
+			if(locations.keySet().removeIf(location -> location.startsWith(prefix)) && locations.isEmpty()) {
+				iterator.remove();
+			}
+		}
+	}
+	
+	/**
+	 * Replaces a document with new words, as long
+	 * as the first word in the array is at the first position
+	 * @param location the location of the document
+	 * @param words the new words of the document
+	 */
+	public void replaceDocument(String location, String[] words) {
+		InvertedIndex document = new InvertedIndex();
+		document.addAll(words, location);
+		replaceDocument(location, document);
+	}
+	
+	/**
+	 * Replaces a document with the contents of an index holding only that
+	 * document, so re-indexing a location never mixes old and new positions
+	 * or counts the document twice. A frozen index stays frozen, with the new
+	 * contents kept beside it until they are packed in.
+	 * @param location the location of the document
+	 * @param document the new contents of the document
+	 */
+	public void replaceDocument(String location, InvertedIndex document) {
+		removeDocument(location);
+		addAll(document);
+	}
+	
 	/**
 	 * Searches for Results that match the inverted index 
 	 * and returns a list of (sorted) matches
@@ -81,69 +325,221 @@ public class InvertedIndex {
 	 * @return a sorted list of Results
 	 */
 	public List<Results> search(Set<String> terms, boolean matches) {
-		Map<String, Results> searchResultMap = new HashMap<>();
+		if(frozen != null) {
+			return frozenSearch(terms, matches);
+		}
+		
 		ArrayList<Results> results = new ArrayList<>();
+		searchMaps(terms, matches, results);
+		Collections.sort(results);
+		return results;
+	}
+	
+	/**
+	 * Searches the maps, which hold the whole index while it is mutable and
+	 * the documents added beside it once it is frozen
+	 * @param terms cleaned and stemmed search terms
+	 * @param matches if it matches exactly, return true
+	 * @param results where to add the unsorted Results
+	 */
+	private void searchMaps(Set<String> terms, boolean matches, List<Results> results) {
+		if(invertedIndex.isEmpty()) {
+			return;
+		}
+		
+		Map<String, Integer> slots = new HashMap<>();
+		Accumulator accumulator = new Accumulator(16);
+		int size = 0;
 		
 		if(matches) {
-			exactSearch(terms, searchResultMap, results);
+			size = exactSearch(terms, slots, accumulator);
 		} else {
-			partialSearch(terms, searchResultMap, results);
+			size = partialSearch(terms, slots, accumulator);
+		}
+		
+		for(int i = 0; i < size; i++) {
+			String where = accumulator.locations[i];
+			results.add(new Results(where, accumulator.counts[i], countMap.get(where)));
+		}
+	}
+	
+	/**
+	 * Searches the frozen form of the index, counting matches per location
+	 * in primitive arrays reused by the next search on the same thread and
+	 * only creating Results for the matches
+	 * @param terms cleaned and stemmed search terms
+	 * @param matches if it matches exactly, return true
+	 * @return a sorted list of Results
+	 */
+	private List<Results> frozenSearch(Set<String> terms, boolean matches) {
+		Accumulator accumulator = accumulator(frozen.locations());
+		long[] counts = accumulator.counts;
+		int[] touched = accumulator.touched;
+		int size = frozen.accumulate(terms, matches, counts, touched);
+		
+		ArrayList<Results> results = new ArrayList<>(size);
+		for(int i = 0; i < size; i++) {
+			int location = touched[i];
+			results.add(new Results(frozen.location(location), counts[location], frozen.length(location)));
 		}
+		accumulator.release(size);
 		
+		searchMaps(terms, matches, results);
 		Collections.sort(results);
 		return results;
 	}
 	
 	/**
-	 * Creates a map of Results of searchTerms 
+	 * Runs many searches at once. On a frozen index the searches are split
+	 * into blocks, and each block looks up the words of a term shared by its
+	 * searches only once and reuses one set of counts for all of them.
+	 * Otherwise each search runs on its own.
+	 * @param queries the cleaned and stemmed terms of each search
+	 * @param matches if it matches exactly, return true
+	 * @param queue the queue to run the blocks on, or null to run them on the caller
+	 * @return the sorted list of Results of each search, in the same order
+	 */
+	public List<List<Results>> search(List<Set<String>> queries, boolean matches, WorkQueue queue) {
+		List<List<Results>> found = new ArrayList<>(Collections.nCopies(queries.size(), null));
+		List<BatchSearchTasks> tasks = new ArrayList<>();
+		
+		for(int start = 0; start < queries.size(); start += BATCH_QUERIES) {
+			BatchSearchTasks task = new BatchSearchTasks(queries, start, Math.min(queries.size(), start + BATCH_QUERIES), matches, found);
+			
+			if(queue == null) {
+				task.run();
+			}
+			else {
+				queue.execute(task);
+			}
+			tasks.add(task);
+		}
+		
+		for(BatchSearchTasks task : tasks) {
+			task.await();
+		}
+		return found;
+	}
+	
+	/**
+	 * Runs a block of searches on the frozen form of the index. The counts are
+	 * cleared through the touched list after each search, so the whole block
+	 * shares the counts of its thread.
+	 * @param queries the cleaned and stemmed terms of each search
+	 * @param start the first search of the block
+	 * @param end the search after the last of the block
+	 * @param matches if it matches exactly, return true
+	 * @param found where to put the sorted list of Results of each search
+	 * @return false if the index is not frozen, in which case nothing was searched
+	 */
+	boolean searchFrozen(List<Set<String>> queries, int start, int end, boolean matches, List<List<Results>> found) {
+		if(frozen == null) {
+			return false;
+		}
+		
+		Accumulator accumulator = accumulator(frozen.locations());
+		long[] counts = accumulator.counts;
+		int[] touched = accumulator.touched;
+		Map<String, int[]> ranges = new HashMap<>();
+		
+		for(int query = start; query < end; query++) {
+			int size = frozen.accumulate(queries.get(query), matches, counts, touched, ranges);
+			
+			ArrayList<Results> results = new ArrayList<>(size);
+			for(int i = 0; i < size; i++) {
+				int location = touched[i];
+				results.add(new Results(frozen.location(location), counts[location], frozen.length(location)));
+				counts[location] = 0;
+			}
+			
+			searchMaps(queries.get(query), matches, results);
+			Collections.sort(results);
+			found.set(query, results);
+		}
+		accumulator.release(0);
+		return true;
+	}
+	
+	/**
+	 * Adds up the matches of searchTerms 
 	 * that match exactly from the inverted index
 	 * @param terms the cleaned and stemmed search terms
-	 * @param searchResults the Results Map
-	 * @param results the list of results 
+	 * @param slots where each location is counted in the accumulator
+	 * @param accumulator the locations and counts found so far
+	 * @return the number of locations found
 	 */
-	private void exactSearch(Set<String> terms, Map<String, Results> searchResults, ArrayList<Results> results) {
+	private int exactSearch(Set<String> terms, Map<String, Integer> slots, Accumulator accumulator) {
+		int size = 0;
 		for(String searchTerm : terms) {
-			if(invertedIndex.containsKey(searchTerm)) {
-				searchInput(searchTerm, searchResults, results);
+			TreeMap<String, TreeSet<Integer>> postings = invertedIndex.get(searchTerm);
+			if(postings != null) {
+				size = searchInput(postings, slots, accumulator, size);
 			}
 		}
+		return size;
 	}
 
 	/**
-	 * Creates a map of Results of searchTerms 
+	 * Adds up the matches of searchTerms 
 	 * that match partially from the inverted index
 	 * @param terms the cleaned and stemmed search terms
-	 * @param searchResults the Results Map
-	 * @param results the list of results 
+	 * @param slots where each location is counted in the accumulator
+	 * @param accumulator the locations and counts found so far
+	 * @return the number of locations found
 	 */
-	private void partialSearch(Set<String> terms, Map<String, Results> searchResults, ArrayList<Results> results) {
+	private int partialSearch(Set<String> terms, Map<String, Integer> slots, Accumulator accumulator) {
+		int size = 0;
 		for(String searchTerm : terms) {
-			for(String matchedTerm : invertedIndex.tailMap(searchTerm).keySet()) {
-				if(!matchedTerm.startsWith(searchTerm)) {
+			for(var entry : invertedIndex.tailMap(searchTerm).entrySet()) {
+				if(!entry.getKey().startsWith(searchTerm)) {
 					break;
 				}
-				searchInput(matchedTerm, searchResults, results);
+				size = searchInput(entry.getValue(), slots, accumulator, size);
 			}
 		}
+		return size;
 	}
 	
 	/**
-	 * Creates a map of Results with either an exact
-	 * or partial match from the inverted index
-	 * @param terms the cleaned and stemmed search terms
-	 * @param searchResults the Results Map
-	 * @param results the list of results
-	 */
-	private void searchInput(String terms, Map<String, Results> searchResults, ArrayList<Results> results) {
-		for(String location : invertedIndex.get(terms).keySet()) {
-			if (!searchResults.containsKey(location)) {
-				Results result = new Results(terms, location);
-				results.add(result);
-				searchResults.put(location, result);
-			} else {
-				searchResults.get(location).update(terms);
+	 * Adds the number of positions of one word at each of its locations to
+	 * the accumulator. A location seen for the first time gets the next slot,
+	 * so Results are only made once every word has been counted.
+	 * @param postings the locations and positions of the word
+	 * @param slots where each location is counted in the accumulator
+	 * @param accumulator the locations and counts found so far
+	 * @param size the number of locations found so far
+	 * @return the new number of locations found
+	 */
+	private static int searchInput(TreeMap<String, TreeSet<Integer>> postings, Map<String, Integer> slots, Accumulator accumulator, int size) {
+		for(var posting : postings.entrySet()) {
+			Integer slot = slots.putIfAbsent(posting.getKey(), size);
+			
+			if(slot == null) {
+				accumulator.add(size, posting.getKey(), posting.getValue().size());
+				size++;
+			}
+			else {
+				accumulator.counts[slot] += posting.getValue().size();
 			}
 		}
+		return size;
+	}
+
+	/**
+	 * Takes the counts left behind by the last search of a frozen index on
+	 * this thread, or new ones if there are none or they are too small. A
+	 * search that fails never gives them back, so they are never left dirty.
+	 * @param locations the number of locations to count
+	 * @return all zero counts for at least that many locations
+	 */
+	static Accumulator accumulator(int locations) {
+		Accumulator accumulator = ACCUMULATORS.get();
+		
+		if(accumulator == null || accumulator.counts.length < locations) {
+			return new Accumulator(locations);
+		}
+		ACCUMULATORS.remove();
+		return accumulator;
 	}
 
 	/**
@@ -152,6 +548,9 @@ public class InvertedIndex {
 	 * @return true if the invertedIndex contains the word
 	 */
 	public boolean contains(String word) {
+		if(frozen != null && frozen.contains(word)) {
+			return true;
+		}
 		return invertedIndex.containsKey(word);
 	}
 	
@@ -163,7 +562,11 @@ public class InvertedIndex {
 	 * @return true if it contains a specified location
 	 */
 	public boolean contains(String word, String location) {
-		return contains(word) && invertedIndex.get(word).containsKey(location);
+		if(frozen != null && frozen.contains(word, location)) {
+			return true;
+		}
+		TreeMap<String, TreeSet<Integer>> locations = invertedIndex.get(word);
+		return locations != null && locations.containsKey(location);
 	}
 	
 	/**
@@ -176,7 +579,11 @@ public class InvertedIndex {
 	 * @return true if the invertedIndex contains the position
 	 */
 	public boolean contains(String word, String location, Integer position) {
-		return contains(word, location) && invertedIndex.get(word).get(location).contains(position);
+		if(frozen != null && frozen.contains(word, location, position)) {
+			return true;
+		}
+		TreeSet<Integer> positions = positions(word, location);
+		return positions != null && positions.contains(position);
 	}
 	
 	/**
@@ -185,7 +592,7 @@ public class InvertedIndex {
 	 * @throws IOException if an IO Exception occurs
 	 */
 	public void printIndex(String index) throws IOException { 
-		JSONWriter.asDoubleNested(invertedIndex, Path.of(index));
+		JSONWriter.asDoubleNested(frozen != null ? unpacked().invertedIndex : invertedIndex, Path.of(index));
 	}
 	
 	/**
@@ -195,9 +602,26 @@ public class InvertedIndex {
 	 * @throws IOException if IOException occurs
 	 */
 	public void toJSON(Path path) throws IOException {
+		if(frozen != null) {
+			packed().toJSON(path, null);
+			return;
+		}
 		JSONWriter.asObject(invertedIndex, path);
 	}
 	
+	/**
+	 * Writes the index to the given path, rendering ranges of words in
+	 * parallel on the work queue. The index is packed first, so only that
+	 * takes a consistent look at the index and the slow part of writing
+	 * works on the packed copy.
+	 * @param path where to write
+	 * @param queue the queue to render on
+	 * @throws IOException if IOException occurs
+	 */
+	public void toJSON(Path path, WorkQueue queue) throws IOException {
+		pack().toJSON(path, queue);
+	}
+	
 	/**
 	 * Write the counts data structure to 
 	 * the given path 
@@ -205,7 +629,7 @@ public class InvertedIndex {
 	 * @throws IOException if IOException occurs
 	 */
 	public void countsToJSON(Path counts) throws IOException {
-		JSONWriter.asObject(countMap, counts);
+		JSONWriter.asObject(frozen != null ? counts() : countMap, counts);
 	}
 	
 	/**
@@ -214,7 +638,10 @@ public class InvertedIndex {
 	 * @return number of words
 	 */
 	public int indexSize() {
-		return invertedIndex.size();
+		if(hasDelta()) {
+			return words().size();
+		}
+		return frozen != null ? frozen.size() : invertedIndex.size();
 	}
 	
 	/**
@@ -222,7 +649,42 @@ public class InvertedIndex {
 	 * @return count
 	 */
 	public Map<String, Integer> getCount() {
-		return Collections.unmodifiableMap(countMap);
+		return Collections.unmodifiableMap(frozen != null ? counts() : countMap);
+	}
+	
+	/**
+	 * Returns the word counts of a frozen index and the documents added beside it
+	 * @return a sorted map of locations to word counts
+	 */
+	private Map<String, Integer> counts() {
+		Map<String, Integer> counts = frozen.getCount();
+		counts.putAll(countMap);
+		return counts;
+	}
+	
+	/**
+	 * Gets an unmodifiable Set of the words in the invertedIndex
+	 * @return an unmodifiable sorted set of the words
+	 */
+	public Set<String> getWords() {
+		return words();
+	}
+	
+	/**
+	 * Returns the words without going through {@link #getWords()}, so a
+	 * subclass that locks it is not locked again from inside
+	 * @return an unmodifiable sorted set of the words
+	 */
+	private Set<String> words() {
+		if (hasDelta()) {
+			TreeSet<String> words = new TreeSet<>(frozen.getWords());
+			words.addAll(invertedIndex.keySet());
+			return Collections.unmodifiableSet(words);
+		}
+		if (frozen != null) {
+			return frozen.getWords();
+		}
+		return Collections.unmodifiableSet(invertedIndex.keySet());
 	}
 	
 	/**
@@ -231,8 +693,17 @@ public class InvertedIndex {
 	 * @return an unmodifiable set of the locations
 	 */
 	public Set<String> getLocations(String word) {
-		if (contains(word)) {
-			return Collections.unmodifiableSet(invertedIndex.get(word).keySet());
+		TreeMap<String, TreeSet<Integer>> locations = invertedIndex.get(word);
+		if (frozen != null) {
+			if (locations == null) {
+				return frozen.getLocations(word);
+			}
+			TreeSet<String> found = new TreeSet<>(frozen.getLocations(word));
+			found.addAll(locations.keySet());
+			return Collections.unmodifiableSet(found);
+		}
+		if (locations != null) {
+			return Collections.unmodifiableSet(locations.keySet());
 		}
 		return Collections.emptySet();
 	}
@@ -244,11 +715,28 @@ public class InvertedIndex {
 	 * @return an unmodifiable set of the positions
 	 */
 	public Set<Integer> getPositions(String word, String location) {
-		if (contains(word, location)) {
-			return Collections.unmodifiableSet(invertedIndex.get(word).get(location));
+		if (frozen != null && frozen.hasLocation(location)) {
+			return frozen.getPositions(word, location);
+		}
+		TreeSet<Integer> positions = positions(word, location);
+		if (positions != null) {
+			return Collections.unmodifiableSet(positions);
 		}
 		return Collections.emptySet();
 	}
+	
+	/**
+	 * Looks up the positions of a word at a location in the maps. The readers
+	 * use this rather than calling each other, so a subclass that locks each
+	 * reader never takes its lock twice.
+	 * @param word the word
+	 * @param location the location
+	 * @return the positions, or null if the word does not appear at the location
+	 */
+	private TreeSet<Integer> positions(String word, String location) {
+		TreeMap<String, TreeSet<Integer>> locations = invertedIndex.get(word);
+		return locations == null ? null : locations.get(location);
+	}
 
 	/**
 	 * Inner Class that gives us the results of the location of the 
@@ -267,36 +755,25 @@ public class InvertedIndex {
 		/**
 		 * Stores the count
 		 */
-		private long count;
+		private final long count;
 		
 		/**
 		 * Stores the score
 		 */
-		private double score;
+		private final double score;
 		
 		/**
-		 * Results constructor that initializes
-		 * location, count and score
-		 * @param words the words we are storing
+		 * Results constructor for an already known count
 		 * @param where the location of the String
+		 * @param count the number of matches at the location
+		 * @param total the number of words at the location
 		 */
-		public Results(String words, String where) {
+		Results(String where, long count, int total) {
 			this.where = where;
-			this.count = 0;
-			this.score = 0.0;
-			update(words);
+			this.count = count;
+			this.score = (double) count / total;
 		}
 	
-		/**
-		 * Updates the count by adding the size
-		 * of the location of the word
-		 * @param word the word we use
-		 */
-		private void update(String word) {
-			this.count += invertedIndex.get(word).get(where).size();
-			this.score = (double) count / countMap.get(where);
-		}
-		
 		/**
 		 * Returns where the String is
 		 * @return the location of the String
@@ -339,8 +816,6 @@ public class InvertedIndex {
 		
 		@Override
 		public void toJSONObject(Writer writer, int times) throws IOException {
-			String formatted = "%.8f";
-			
 			writer.write("{\n");
 			JSONWriter.indent(writer, times + 2);
 			writer.write("\"where\": ");
@@ -348,11 +823,11 @@ public class InvertedIndex {
 			writer.write(",\n");
 			JSONWriter.indent(writer, times + 2);
 			writer.write("\"count\": ");
-			writer.write(Long.toString(count));
+			JSONWriter.asNumber(count, writer);
 			writer.write(",\n");
 			JSONWriter.indent(writer, times + 2);
 			writer.write("\"score\": ");
-			writer.write(String.format(formatted, score));
+			JSONWriter.asDecimal(score, 8, writer);
 			writer.write('\n');
 			JSONWriter.indent(writer, times + 1);
 			writer.write('}');
@@ -360,36 +835,290 @@ public class InvertedIndex {
 	}
 	
 	/**
-	 * addAll method that merges inverted indices
+	 * Counts of matches per location kept in primitive arrays. A frozen index
+	 * counts by location id and lists the ids it touched; the maps count into
+	 * slots in the order the locations were found.
+	 * @author angelarichards261
+	 */
+	static class Accumulator {
+		
+		/** The running count of each location or slot */
+		private long[] counts;
+		
+		/** The ids of the locations with a count, in the order found */
+		private final int[] touched;
+		
+		/** The location in each slot, when counting the maps */
+		private String[] locations;
+		
+		/**
+		 * Constructor for all zero counts
+		 * @param size the number of locations or slots to start with
+		 */
+		public Accumulator(int size) {
+			this.counts = new long[size];
+			this.touched = new int[size];
+			this.locations = null;
+		}
+		
+		/**
+		 * Returns the running count of each location or slot
+		 * @return the counts
+		 */
+		public long[] counts() {
+			return counts;
+		}
+		
+		/**
+		 * Returns the ids of the locations with a count, in the order found
+		 * @return the touched ids
+		 */
+		public int[] touched() {
+			return touched;
+		}
+		
+		/**
+		 * Fills the next slot with a location found for the first time,
+		 * growing the arrays if needed
+		 * @param slot the slot
+		 * @param location the location
+		 * @param count its first count
+		 */
+		public void add(int slot, String location, long count) {
+			if(locations == null) {
+				locations = new String[counts.length];
+			}
+			if(slot == counts.length) {
+				counts = Arrays.copyOf(counts, slot * 2);
+				locations = Arrays.copyOf(locations, slot * 2);
+			}
+			locations[slot] = location;
+			counts[slot] = count;
+		}
+		
+		/**
+		 * Clears the counts of the touched locations and leaves the counts for
+		 * the next search on this thread
+		 * @param size the number of ids in touched still counted
+		 */
+		public void release(int size) {
+			for(int i = 0; i < size; i++) {
+				counts[touched[i]] = 0;
+			}
+			ACCUMULATORS.set(this);
+		}
+	}
+	
+	/**
+	 * Inner Tasks class that runs a block of searches for
+	 * {@link InvertedIndex#search(List, boolean, WorkQueue)}
+	 * @author angelarichards261
+	 */
+	private class BatchSearchTasks implements Runnable {
+		
+		/** The cleaned and stemmed terms of each search */
+		private final List<Set<String>> queries;
+		
+		/** The first search of the block */
+		private final int start;
+		
+		/** The search after the last of the block */
+		private final int end;
+		
+		/** True for an exact search */
+		private final boolean matches;
+		
+		/** Where to put the results of each search */
+		private final List<List<Results>> found;
+		
+		/** Counted down once the block is searched or searching failed */
+		private final CountDownLatch done;
+		
+		/** What went wrong while searching, or null */
+		private volatile RuntimeException failure;
+		
+		/**
+		 * Constructor for the batch search task
+		 * @param queries the cleaned and stemmed terms of each search
+		 * @param start the first search of the block
+		 * @param end the search after the last of the block
+		 * @param matches true for an exact search
+		 * @param found where to put the results of each search
+		 */
+		public BatchSearchTasks(List<Set<String>> queries, int start, int end, boolean matches, List<List<Results>> found) {
+			this.queries = queries;
+			this.start = start;
+			this.end = end;
+			this.matches = matches;
+			this.found = found;
+			this.done = new CountDownLatch(1);
+			this.failure = null;
+		}
+		
+		@Override
+		public void run() {
+			try {
+				if(!searchFrozen(queries, start, end, matches, found)) {
+					for(int query = start; query < end; query++) {
+						found.set(query, search(queries.get(query), matches));
+					}
+				}
+			}
+			catch(RuntimeException e) {
+				failure = e;
+			}
+			finally {
+				done.countDown();
+			}
+		}
+		
+		/**
+		 * Waits for the block to be searched
+		 */
+		public void await() {
+			try {
+				done.await();
+			}
+			catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("Interrupted while searching", e);
+			}
+			
+			if(failure != null) {
+				throw failure;
+			}
+		}
+	}
+	
+	/**
+	 * Adds a frozen index. An empty index simply adopts it, staying frozen,
+	 * otherwise its contents are merged in as with {@link #addAll(InvertedIndex)}.
+	 * @param index the frozen index to add
+	 */
+	public void addAll(FrozenIndex index) {
+		changed();
+		
+		if(frozen == null && invertedIndex.isEmpty() && countMap.isEmpty()) {
+			frozen = index;
+		}
+
+		else {
+			InvertedIndex copy = new InvertedIndex();
+			copy.frozen = index;
+			addAll(copy);
+		}
+	}
+	
+	/**
+	 * addAll method that merges inverted indices. Words and locations
+	 * missing from this index adopt the other index's maps and sets
+	 * rather than copying them, so the other index should not be
+	 * modified afterwards. A frozen index stays frozen unless the other
+	 * index has a location it already holds.
 	 * @param index the index we use
 	 */
 	public void addAll(InvertedIndex index) {
-		Set<String> indexKey = index.invertedIndex.keySet();
-		Set<String> countKey = index.countMap.keySet();
+		if(index.frozen != null) {
+			index = index.unpacked();
+		}
+		if(frozen != null && overlaps(index)) {
+			thaw();
+		}
+		changed();
+		merge(invertedIndex, index.invertedIndex, (locations, other) -> merge(locations, other, Set::addAll));
+
+		for(var entry : index.countMap.entrySet()) {
+			countMap.merge(entry.getKey(), entry.getValue(), Integer::sum);
+		}
+		packDelta();
+	}
+	
+	/**
+	 * Returns true if another index has any location this index has frozen,
+	 * in which case adding it has to unpack this index to combine them
+	 * @param index the index to add
+	 * @return true if a location of the other index is frozen here
+	 */
+	private boolean overlaps(InvertedIndex index) {
+		for(String location : index.countMap.keySet()) {
+			if(frozen.hasLocation(location)) {
+				return true;
+			}
+		}
+		for(TreeMap<String, TreeSet<Integer>> locations : index.invertedIndex.values()) {
+			for(String location : locations.keySet()) {
+				if(!index.countMap.containsKey(location) && frozen.hasLocation(location)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Merges one sorted map into another. Keys missing from the target adopt
+	 * the source's value, and values under keys found in both are combined.
+	 * An empty target is filled in linear time, a small source is merged with
+	 * one lookup per key, and otherwise both maps are walked once in order.
+	 * @param <V> the value type
+	 * @param target the map merged into
+	 * @param source the map merged from
+	 * @param combine merges a source value into the target value for the same key
+	 */
+	private static <V> void merge(TreeMap<String, V> target, TreeMap<String, V> source, BiConsumer<V, V> combine) {
+		if(target.isEmpty()) {
+			target.putAll(source);
+			return;
+		}
+		
+		int depth = 32 - Integer.numberOfLeadingZeros(target.size());
 		
-		for(String key : indexKey) {
-			if(!invertedIndex.containsKey(key)) {
-				invertedIndex.put(key, index.invertedIndex.get(key));
+		if((long) source.size() * depth < target.size()) {
+			for(var entry : source.entrySet()) {
+				V existing = target.putIfAbsent(entry.getKey(), entry.getValue());
+				if(existing != null) {
+					combine.accept(existing, entry.getValue());
+				}
+			}
+			return;
+		}
+		
+		List<Map.Entry<String, V>> added = new ArrayList<>();
+		Iterator<Map.Entry<String, V>> iterator = target.entrySet().iterator();
+		Map.Entry<String, V> current = iterator.next();
+		
+		for(var entry : source.entrySet()) {
+			int compared = -1;
+			
+			while(current != null && (compared = current.getKey().compareTo(entry.getKey())) < 0) {
+				current = iterator.hasNext() ? iterator.next() : null;
+			}
+			
+			if(current != null && compared == 0) {
+				combine.accept(current.getValue(), entry.getValue());
 			}
 			else {
-				for(String path : index.invertedIndex.get(key).keySet()) {
-					if(invertedIndex.get(key).containsKey(path)) {
-						invertedIndex.get(key).get(path).addAll(index.invertedIndex.get(key).get(path));
-					}
-					else {
-						invertedIndex.get(key).put(path, index.invertedIndex.get(key).get(path));
-					}
-				}
+				added.add(entry);
 			}
 		}
-		for (String key : countKey) {
-			int count = index.countMap.get(key) + this.countMap.getOrDefault(key, 0);
-			this.countMap.put(key, count);
+		
+		for(var entry : added) {
+			target.put(entry.getKey(), entry.getValue());
 		}
 	}
 	
+	/**
+	 * Returns a mutable copy of a frozen index, leaving this index frozen
+	 * @return the copy
+	 */
+	private InvertedIndex unpacked() {
+		InvertedIndex copy = new InvertedIndex();
+		packed().thaw(copy.invertedIndex, copy.countMap);
+		return copy;
+	}
+	
 	@Override
 	public String toString() {
-		return invertedIndex.toString();
+		return frozen != null ? unpacked().toString() : invertedIndex.toString();
 	}
 }
\ No newline at end of file
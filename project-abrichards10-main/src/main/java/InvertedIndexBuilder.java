@@ -1,6 +1,4 @@
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
 import java.nio.file.FileVisitOption;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -65,8 +63,25 @@ public class InvertedIndexBuilder {
 	 * @return a boolean that checks if the file is a .txt or .text
 	 */
 	public static boolean isText(Path nextPath) {
-		String location = nextPath.toString().toLowerCase();
-		return Files.isRegularFile(nextPath) && location.endsWith(".txt") || location.endsWith(".text");
+		// the name is checked first so most paths never need a stat call
+		return hasTextExtension(nextPath) && Files.isRegularFile(nextPath);
+	}
+	
+	/**
+	 * Determines if a path is named like a .txt or .text file, without
+	 * touching the file system
+	 * @param path the path we check
+	 * @return true if the name ends in .txt or .text, ignoring case
+	 */
+	public static boolean hasTextExtension(Path path) {
+		Path name = path.getFileName();
+		if(name == null) {
+			return false;
+		}
+		
+		String file = name.toString();
+		return file.regionMatches(true, file.length() - 4, ".txt", 0, 4)
+				|| file.regionMatches(true, file.length() - 5, ".text", 0, 5);
 	}
 	
 	/**
@@ -86,20 +101,17 @@ public class InvertedIndexBuilder {
 	 */
 	public static void addPath(Path file, InvertedIndex index) throws IOException { 
 		Stemmer stemmer = new SnowballStemmer(DEFAULT);
-		try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8);) {
+		String location = file.toString();
 		
-			String line = reader.readLine();
+		try (TextFileReader reader = new TextFileReader(file);) {
+			String word = reader.next();
 			int i = 0;
 			
-			while(line != null) {
-				String[] parsedLine = TextParser.parse(line);
-					
-				for(String words : parsedLine) {
-					String data = stemmer.stem(words).toString();
-					index.addElement(data, file.toString(), ++i);
-				}
-				line = reader.readLine();
+			while(word != null) {
+				String data = stemmer.stem(word).toString();
+				index.addElement(data, location, ++i);
+				word = reader.next();
 			}
 		}
 	}
-}
\ No newline at end of file
+}
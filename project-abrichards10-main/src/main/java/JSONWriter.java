@@ -5,11 +5,13 @@ import java.io.Writer;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.text.DecimalFormatSymbols;
 import java.util.Collection;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
 import java.util.Iterator;
+import java.util.Locale;
 import java.util.Map;
 
 /**
@@ -26,6 +28,35 @@ import java.util.Map;
  */
 
 public class JSONWriter extends InvertedIndex {
+	
+	/** Runs of tabs for each indent level up to the length of this array */
+	private static final String[] TABS = new String[16];
+	
+	/** Powers of ten that fit in a long, indexed by exponent */
+	private static final long[] POWERS = new long[19];
+	
+	/**
+	 * Whether numbers formatted with {@link String#format(String, Object...)}
+	 * in the default locale use a period and plain ASCII digits, so that
+	 * {@link #asDecimal(double, int, Writer)} may write them itself
+	 */
+	private static final boolean ASCII_DECIMALS;
+	
+	static {
+		StringBuilder tabs = new StringBuilder();
+		for(int i = 0; i < TABS.length; i++) {
+			TABS[i] = tabs.toString();
+			tabs.append('\t');
+		}
+		
+		POWERS[0] = 1;
+		for(int i = 1; i < POWERS.length; i++) {
+			POWERS[i] = POWERS[i - 1] * 10;
+		}
+		
+		DecimalFormatSymbols symbols = DecimalFormatSymbols.getInstance(Locale.getDefault(Locale.Category.FORMAT));
+		ASCII_DECIMALS = symbols.getDecimalSeparator() == '.' && symbols.getZeroDigit() == '0';
+	}
 		
 	/**
 	 * Writes the elements as a pretty JSON array
@@ -252,13 +283,15 @@ public class JSONWriter extends InvertedIndex {
 		if(iterator.hasNext()) {
 			String key = iterator.next();
 			writer.write("\n\t");
-			writer.write('"' + key+ '"' + ": ");
+			quote(key, writer);
+			writer.write(": ");
 			asNestedObject(elements.get(key), writer, level+1);
 		}
 		while(iterator.hasNext()) {
 			String key = iterator.next();
 			writer.write(",\n\t");
-			writer.write('"' + key+ '"' + ": ");
+			quote(key, writer);
+			writer.write(": ");
 			asNestedObject(elements.get(key), writer, level+1);
 		}
 		writer.write("\n");
@@ -334,6 +367,20 @@ public class JSONWriter extends InvertedIndex {
 		asVariable(element.getValue(), writer, level);
 	}
 		
+	/**
+	 * Writes one name and value of a pretty JSON object, exactly as it
+	 * appears between the other elements of an object written with
+	 * {@link #asObject(Map, Writer, int)} at the same level
+	 * 
+	 * @param element the element to write
+	 * @param writer the writer to use
+	 * @param level the indent level of the object
+	 * @throws IOException if an IO error occurs
+	 */
+	public static void asEntry(Map.Entry<?, ?> element, Writer writer, int level) throws IOException {
+		asSingleObjectVariable(element, writer, level);
+	}
+	
 	/**
 	 * Helper method to write the value of an element
 	 * 
@@ -352,6 +399,8 @@ public class JSONWriter extends InvertedIndex {
 			quote(element.toString(), writer);
 		} else if (element instanceof JSONObject) {
 			((JSONObject) element).toJSONObject(writer, level);
+		} else if (element instanceof Integer || element instanceof Long) {
+			asNumber(((Number) element).longValue(), writer);
 		} else {
 			writer.write(element.toString());
 		}
@@ -375,11 +424,85 @@ public class JSONWriter extends InvertedIndex {
 	 * @throws IOException if an IO Exception occurs
 	 */
 	public static void indent(Writer writer, int times) throws IOException {
+		if (times < TABS.length) {
+			writer.write(TABS[Math.max(times, 0)]);
+			return;
+		}
+		
 		for (int i = 0; i < times; i++) {
 			writer.write('\t');
 		}
 	}
 	
+	/**
+	 * Writes a whole number in decimal without making a string of it
+	 * 
+	 * @param value the number
+	 * @param writer the writer to use
+	 * @throws IOException if an IO Exception occurs
+	 */
+	public static void asNumber(long value, Writer writer) throws IOException {
+		if (value < 0) {
+			writer.write(Long.toString(value));
+			return;
+		}
+		
+		char[] digits = new char[19];
+		int start = digits.length;
+		do {
+			digits[--start] = (char) ('0' + value % 10);
+			value /= 10;
+		} while (value > 0);
+		
+		writer.write(digits, start, digits.length - start);
+	}
+	
+	/**
+	 * Writes a number with a fixed number of decimal places, exactly as
+	 * {@code String.format("%.8f", value)} would for eight places. That
+	 * rounds the shortest decimal form of the number half up, so a number is
+	 * only written here when its scaled value is far enough from a rounding
+	 * tie that both ways of rounding agree, and otherwise goes through
+	 * {@link String#format(String, Object...)}.
+	 * 
+	 * @param value the number
+	 * @param places the number of decimal places, at most 9
+	 * @param writer the writer to use
+	 * @throws IOException if an IO Exception occurs
+	 */
+	public static void asDecimal(double value, int places, Writer writer) throws IOException {
+		double scaled = places >= 0 && places <= 9 ? value * POWERS[places] : Double.NaN;
+		
+		// negative numbers, including negative zero, and anything too large keep the slow path
+		if (!ASCII_DECIMALS || !(scaled >= 0) || scaled >= 0x1p52 || Double.doubleToRawLongBits(value) < 0) {
+			writer.write(String.format("%." + places + "f", value));
+			return;
+		}
+		
+		double floor = Math.floor(scaled);
+		double fraction = scaled - floor;
+		
+		// the product and the shortest decimal form are each within a few ulps of the value
+		if (Math.abs(fraction - 0.5) <= Math.max(scaled, 1) * 0x1p-44) {
+			writer.write(String.format("%." + places + "f", value));
+			return;
+		}
+		
+		long rounded = (long) floor + (fraction > 0.5 ? 1 : 0);
+		asNumber(rounded / POWERS[places], writer);
+		
+		if (places > 0) {
+			char[] digits = new char[places + 1];
+			digits[0] = '.';
+			long decimals = rounded % POWERS[places];
+			for (int i = places; i > 0; i--) {
+				digits[i] = (char) ('0' + decimals % 10);
+				decimals /= 10;
+			}
+			writer.write(digits);
+		}
+	}
+	
 	/**
 	 * Indents in between the given elements
 	 * 
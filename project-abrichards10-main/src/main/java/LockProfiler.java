@@ -0,0 +1,169 @@
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Records how long callers wait for and hold a {@link SimpleReadWriteLock},
+ * grouped by caller site (for example the name of the
+ * {@link ThreadSafeInvertedIndex} method taking the lock) and by read or write
+ * mode. Nothing is recorded unless a profiler is attached to the lock with
+ * {@link SimpleReadWriteLock#setProfiler(LockProfiler)}.
+ *
+ * @author angelarichards261
+ */
+public class LockProfiler {
+
+	/** Statistics for each caller site */
+	private final ConcurrentHashMap<String, Site> sites;
+
+	/**
+	 * Initializes an empty profiler
+	 */
+	public LockProfiler() {
+		this.sites = new ConcurrentHashMap<>();
+	}
+
+	/**
+	 * Wraps a lock so that each lock and unlock through the wrapper is recorded
+	 * against the given site. A new wrapper is needed for each acquisition.
+	 * @param lock the lock to wrap
+	 * @param site the caller site
+	 * @param write true if the lock is the write lock
+	 * @return the wrapped lock
+	 */
+	public SimpleLock wrap(SimpleLock lock, String site, boolean write) {
+		Site stats = sites.computeIfAbsent(site, name -> new Site());
+		return new ProfiledLock(lock, write ? stats.write : stats.read);
+	}
+
+	/**
+	 * Records an optimistic read, which did not acquire the lock at all
+	 * @param site the caller site
+	 * @param validated true if no writer intervened, false if the read had to be
+	 * retried under the read lock
+	 */
+	public void optimisticRead(String site, boolean validated) {
+		Site stats = sites.computeIfAbsent(site, name -> new Site());
+		(validated ? stats.optimistic : stats.retried).increment();
+	}
+
+	/**
+	 * Forgets everything recorded so far
+	 */
+	public void reset() {
+		sites.clear();
+	}
+
+	/**
+	 * Returns the recorded statistics, one line per site and mode, sorted by site
+	 * @return the report
+	 */
+	public String report() {
+		Map<String, Site> sorted = new TreeMap<>(sites);
+		StringBuilder builder = new StringBuilder();
+
+		for(var entry : sorted.entrySet()) {
+			Site site = entry.getValue();
+			append(builder, entry.getKey(), "read", site.read);
+			append(builder, entry.getKey(), "write", site.write);
+
+			long optimistic = site.optimistic.sum();
+			long retried = site.retried.sum();
+
+			if(optimistic > 0 || retried > 0) {
+				builder.append(String.format("%s optimistic: validated=%d retried=%d%n", entry.getKey(), optimistic, retried));
+			}
+		}
+		return builder.toString();
+	}
+
+	/**
+	 * Appends the wait and hold times of one mode of a site to the report
+	 * @param builder the report being built
+	 * @param site the caller site
+	 * @param mode the name of the mode
+	 * @param stats the statistics for the mode
+	 */
+	private static void append(StringBuilder builder, String site, String mode, Stats stats) {
+		WorkQueueMetrics.Histogram.Summary wait = stats.wait.summary();
+
+		if(wait.getCount() > 0) {
+			builder.append(String.format("%s %s: acquisitions=%d%n", site, mode, wait.getCount()));
+			builder.append(String.format("  wait: %s%n", wait));
+			builder.append(String.format("  hold: %s%n", stats.hold.summary()));
+		}
+	}
+
+	@Override
+	public String toString() {
+		return report();
+	}
+
+	/**
+	 * Wait and hold times for one mode of one site
+	 */
+	private static class Stats {
+		/** Time from asking for the lock to getting it */
+		private final WorkQueueMetrics.Histogram wait = new WorkQueueMetrics.Histogram();
+
+		/** Time from getting the lock to releasing it */
+		private final WorkQueueMetrics.Histogram hold = new WorkQueueMetrics.Histogram();
+	}
+
+	/**
+	 * Statistics for one caller site
+	 */
+	private static class Site {
+		/** Read lock statistics */
+		private final Stats read = new Stats();
+
+		/** Write lock statistics */
+		private final Stats write = new Stats();
+
+		/** Optimistic reads that validated */
+		private final LongAdder optimistic = new LongAdder();
+
+		/** Optimistic reads that had to be retried under the read lock */
+		private final LongAdder retried = new LongAdder();
+	}
+
+	/**
+	 * A lock that times a single acquisition of the lock it wraps
+	 */
+	private static class ProfiledLock implements SimpleLock {
+		/** The lock being timed */
+		private final SimpleLock lock;
+
+		/** Where to record the times */
+		private final Stats stats;
+
+		/** When the lock was acquired */
+		private long acquired;
+
+		/**
+		 * Initializes the wrapper
+		 * @param lock the lock being timed
+		 * @param stats where to record the times
+		 */
+		public ProfiledLock(SimpleLock lock, Stats stats) {
+			this.lock = lock;
+			this.stats = stats;
+		}
+
+		@Override
+		public void lock() {
+			long start = System.nanoTime();
+			lock.lock();
+			acquired = System.nanoTime();
+			stats.wait.record(acquired - start);
+		}
+
+		@Override
+		public void unlock() {
+			long held = System.nanoTime() - acquired;
+			lock.unlock();
+			stats.hold.record(held);
+		}
+	}
+}
@@ -0,0 +1,461 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import opennlp.tools.stemmer.Stemmer;
+import opennlp.tools.stemmer.snowball.SnowballStemmer;
+
+/**
+ * Builds an inverted index with a pipeline of three stages, each running on
+ * its own threads and connected by bounded queues. Readers read and clean the
+ * words of one file at a time, stemmers stem them, and indexers add them to
+ * a local index each, which are merged into the index once every file is
+ * done. Words move between stages in batches that remember the position of
+ * their first word, so the index is the same as the one
+ * {@link InvertedIndexBuilder} builds.
+ *
+ * A reader waiting on the disk no longer holds up stemming, and the number of
+ * threads in each stage can be tuned to where the time goes. {@link #stats()}
+ * reports how busy each stage was and how full its input queue ran.
+ *
+ * @author angelarichards261
+ */
+public class PipelinedIndexBuilder extends InvertedIndexBuilder {
+
+	/** Number of words in a full batch */
+	public static final int BATCH_SIZE = 4096;
+
+	/** Number of batches each queue holds before its producers wait */
+	public static final int QUEUE_CAPACITY = 64;
+
+	/** Batch that tells a stage there is nothing more to come */
+	private static final Batch END = new Batch(null, 0, new String[0]);
+
+	/** The index the result is added to */
+	private final InvertedIndex invertedIndex;
+
+	/** The files waiting to be indexed */
+	private final List<Path> files;
+
+	/** Reads and cleans the words of each file */
+	private final Stage read;
+
+	/** Stems the words */
+	private final Stage stem;
+
+	/** Adds the stemmed words to a local index */
+	private final Stage index;
+
+	/**
+	 * Constructor for the pipelined builder
+	 * @param invertedIndex the index the result is added to
+	 * @param readers the number of threads reading files
+	 * @param stemmers the number of threads stemming words
+	 * @param indexers the number of threads adding words to local indexes
+	 */
+	public PipelinedIndexBuilder(InvertedIndex invertedIndex, int readers, int stemmers, int indexers) {
+		super(invertedIndex);
+		this.invertedIndex = invertedIndex;
+		this.files = new ArrayList<>();
+		this.read = new Stage("read", Math.max(1, readers));
+		this.stem = new Stage("stem", Math.max(1, stemmers));
+		this.index = new Stage("index", Math.max(1, indexers));
+	}
+
+	@Override
+	public void traverseDirectory(Path path) throws IOException {
+		super.traverseDirectory(path);
+		finish();
+	}
+
+	@Override
+	public void addPath(Path path) throws IOException {
+		files.add(path);
+	}
+
+	/**
+	 * Runs the pipeline over every file added so far and adds the result to
+	 * the index
+	 */
+	public void finish() {
+		ConcurrentLinkedQueue<Path> pending = new ConcurrentLinkedQueue<>(files);
+		files.clear();
+
+		BlockingQueue<Batch> words = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+		BlockingQueue<Batch> stems = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+		InvertedIndex[] locals = new InvertedIndex[index.threads];
+
+		List<Thread> readers = new ArrayList<>();
+		for(int i = 0; i < read.threads; i++) {
+			readers.add(start(read, i, new ReadTasks(pending, words)));
+		}
+
+		List<Thread> stemmers = new ArrayList<>();
+		for(int i = 0; i < stem.threads; i++) {
+			stemmers.add(start(stem, i, new StemTasks(words, stems)));
+		}
+
+		List<Thread> indexers = new ArrayList<>();
+		for(int i = 0; i < index.threads; i++) {
+			locals[i] = new InvertedIndex();
+			indexers.add(start(index, i, new IndexTasks(stems, locals[i])));
+		}
+
+		// each stage is told to stop once everything before it has stopped
+		join(readers);
+		for(int i = 0; i < stem.threads; i++) {
+			put(words, END, null);
+		}
+		join(stemmers);
+		for(int i = 0; i < index.threads; i++) {
+			put(stems, END, null);
+		}
+		join(indexers);
+
+		for(InvertedIndex local : locals) {
+			invertedIndex.addAll(local);
+		}
+	}
+
+	/**
+	 * Returns how much work each stage did, how busy its threads were and how
+	 * full the queue feeding it ran
+	 * @return the stats, one stage per line
+	 */
+	public String stats() {
+		return read + "\n" + stem + "\n" + index;
+	}
+
+	/**
+	 * Starts a thread for a stage
+	 * @param stage the stage
+	 * @param number the number of the thread within the stage
+	 * @param task what the thread runs
+	 * @return the started thread
+	 */
+	private static Thread start(Stage stage, int number, Runnable task) {
+		Thread thread = new Thread(task, "pipeline-" + stage.name + "-" + number);
+		thread.start();
+		return thread;
+	}
+
+	/**
+	 * Waits for threads to finish
+	 * @param threads the threads
+	 */
+	private static void join(List<Thread> threads) {
+		for(Thread thread : threads) {
+			try {
+				thread.join();
+			}
+			catch(InterruptedException e) {
+				System.out.println("Interrupted while waiting for " + thread.getName());
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Adds a batch to a queue, waiting for room
+	 * @param queue the queue
+	 * @param batch the batch
+	 * @param stage the stage adding it, charged for the time spent waiting, or null
+	 */
+	private static void put(BlockingQueue<Batch> queue, Batch batch, Stage stage) {
+		long start = System.nanoTime();
+		try {
+			queue.put(batch);
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if(stage != null) {
+			stage.waiting.addAndGet(System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Takes the next batch from a queue, waiting for one to arrive
+	 * @param queue the queue
+	 * @param stage the stage taking it, which records how full the queue was
+	 * @return the batch, or {@link #END} if interrupted
+	 */
+	private static Batch take(BlockingQueue<Batch> queue, Stage stage) {
+		stage.sample(queue.size());
+		long start = System.nanoTime();
+		try {
+			return queue.take();
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return END;
+		}
+		finally {
+			stage.waiting.addAndGet(System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Words from one file, with the position of the first of them
+	 * @author angelarichards261
+	 */
+	private static class Batch {
+		/** The file the words came from */
+		private final String location;
+
+		/** The position of the first word in the file */
+		private final int start;
+
+		/** The words, cleaned and then stemmed in place */
+		private final String[] words;
+
+		/**
+		 * Initializes the batch
+		 * @param location the file the words came from
+		 * @param start the position of the first word in the file
+		 * @param words the words
+		 */
+		public Batch(String location, int start, String[] words) {
+			this.location = location;
+			this.start = start;
+			this.words = words;
+		}
+	}
+
+	/**
+	 * Counters for one stage of the pipeline
+	 * @author angelarichards261
+	 */
+	private static class Stage {
+		/** The name of the stage */
+		private final String name;
+
+		/** The number of threads running the stage */
+		private final int threads;
+
+		/** Batches handled */
+		private final AtomicLong batches;
+
+		/** Words handled */
+		private final AtomicLong words;
+
+		/** Total time the threads ran, in nanoseconds */
+		private final AtomicLong elapsed;
+
+		/** Total time the threads waited on a queue, in nanoseconds */
+		private final AtomicLong waiting;
+
+		/** Sum of the input queue sizes seen when taking a batch */
+		private final AtomicLong occupancy;
+
+		/** Number of input queue sizes seen */
+		private final AtomicLong samples;
+
+		/** Largest input queue size seen */
+		private final AtomicInteger largest;
+
+		/**
+		 * Initializes the stage
+		 * @param name the name of the stage
+		 * @param threads the number of threads running the stage
+		 */
+		public Stage(String name, int threads) {
+			this.name = name;
+			this.threads = threads;
+			this.batches = new AtomicLong();
+			this.words = new AtomicLong();
+			this.elapsed = new AtomicLong();
+			this.waiting = new AtomicLong();
+			this.occupancy = new AtomicLong();
+			this.samples = new AtomicLong();
+			this.largest = new AtomicInteger();
+		}
+
+		/**
+		 * Records the size of the input queue
+		 * @param size the number of batches in the queue
+		 */
+		public void sample(int size) {
+			occupancy.addAndGet(size);
+			samples.incrementAndGet();
+			largest.accumulateAndGet(size, Math::max);
+		}
+
+		/**
+		 * Records one batch handled
+		 * @param batch the batch
+		 */
+		public void handled(Batch batch) {
+			batches.incrementAndGet();
+			words.addAndGet(batch.words.length);
+		}
+
+		@Override
+		public String toString() {
+			double busy = (elapsed.get() - waiting.get()) / 1e9;
+			double share = elapsed.get() > 0 ? 100.0 * (elapsed.get() - waiting.get()) / elapsed.get() : 0;
+			String queue = samples.get() == 0 ? "no input queue"
+					: String.format("input queue avg %.1f max %d of %d",
+							(double) occupancy.get() / samples.get(), largest.get(), QUEUE_CAPACITY);
+
+			return String.format("%-5s %d threads, %d batches, %d words, %.1f%% busy, %.0f words/s per busy thread, %s",
+					name, threads, batches.get(), words.get(), share, busy > 0 ? words.get() / busy : 0, queue);
+		}
+	}
+
+	/**
+	 * Runnable that reads and cleans the words of one file at a time
+	 * @author angelarichards261
+	 */
+	private class ReadTasks implements Runnable {
+
+		/** The files not read yet */
+		private final ConcurrentLinkedQueue<Path> pending;
+
+		/** Where the batches of words go */
+		private final BlockingQueue<Batch> output;
+
+		/**
+		 * Constructor for the read task
+		 * @param pending the files not read yet
+		 * @param output where the batches of words go
+		 */
+		public ReadTasks(ConcurrentLinkedQueue<Path> pending, BlockingQueue<Batch> output) {
+			this.pending = pending;
+			this.output = output;
+		}
+
+		@Override
+		public void run() {
+			long started = System.nanoTime();
+			Path file;
+
+			while((file = pending.poll()) != null) {
+				String location = file.toString();
+				String[] words = new String[BATCH_SIZE];
+				int size = 0;
+				int start = 1;
+
+				try(TextFileReader reader = new TextFileReader(file)) {
+					String word = reader.next();
+
+					while(word != null) {
+						words[size++] = word;
+
+						if(size == BATCH_SIZE) {
+							send(new Batch(location, start, words));
+							start += size;
+							words = new String[BATCH_SIZE];
+							size = 0;
+						}
+						word = reader.next();
+					}
+				}
+				catch(IOException e) {
+					System.out.println("Unable to read " + file);
+				}
+
+				// like a sequential read, keep the words before any failure
+				if(size > 0) {
+					send(new Batch(location, start, Arrays.copyOf(words, size)));
+				}
+			}
+
+			read.elapsed.addAndGet(System.nanoTime() - started);
+		}
+
+		/**
+		 * Passes a batch to the stemmers
+		 * @param batch the batch
+		 */
+		private void send(Batch batch) {
+			read.handled(batch);
+			put(output, batch, read);
+		}
+	}
+
+	/**
+	 * Runnable that stems batches of words
+	 * @author angelarichards261
+	 */
+	private class StemTasks implements Runnable {
+
+		/** Where the batches of cleaned words come from */
+		private final BlockingQueue<Batch> input;
+
+		/** Where the batches of stemmed words go */
+		private final BlockingQueue<Batch> output;
+
+		/**
+		 * Constructor for the stem task
+		 * @param input where the batches of cleaned words come from
+		 * @param output where the batches of stemmed words go
+		 */
+		public StemTasks(BlockingQueue<Batch> input, BlockingQueue<Batch> output) {
+			this.input = input;
+			this.output = output;
+		}
+
+		@Override
+		public void run() {
+			long started = System.nanoTime();
+			Stemmer stemmer = new SnowballStemmer(DEFAULT);
+			Batch batch;
+
+			while((batch = take(input, stem)) != END) {
+				String[] words = batch.words;
+				for(int i = 0; i < words.length; i++) {
+					words[i] = stemmer.stem(words[i]).toString();
+				}
+
+				stem.handled(batch);
+				put(output, batch, stem);
+			}
+
+			stem.elapsed.addAndGet(System.nanoTime() - started);
+		}
+	}
+
+	/**
+	 * Runnable that adds batches of stemmed words to a local index
+	 * @author angelarichards261
+	 */
+	private class IndexTasks implements Runnable {
+
+		/** Where the batches of stemmed words come from */
+		private final BlockingQueue<Batch> input;
+
+		/** The index only this task adds to */
+		private final InvertedIndex local;
+
+		/**
+		 * Constructor for the index task
+		 * @param input where the batches of stemmed words come from
+		 * @param local the index only this task adds to
+		 */
+		public IndexTasks(BlockingQueue<Batch> input, InvertedIndex local) {
+			this.input = input;
+			this.local = local;
+		}
+
+		@Override
+		public void run() {
+			long started = System.nanoTime();
+			Batch batch;
+
+			while((batch = take(input, index)) != END) {
+				local.addAll(batch.words, batch.start, batch.location);
+				index.handled(batch);
+			}
+
+			index.elapsed.addAndGet(System.nanoTime() - started);
+		}
+	}
+}
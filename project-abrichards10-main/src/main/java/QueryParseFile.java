@@ -30,12 +30,28 @@ public class QueryParseFile implements QueryParseFileInterface {
 	 */
 	public static final SnowballStemmer.ALGORITHM DEFAULT_LANG = SnowballStemmer.ALGORITHM.ENGLISH;
 
+	/**
+	 * Cache of search results shared with other searchers, or null
+	 */
+	private final SearchCache cache;
+	
 	/**
 	 * Constructor that initializes map and invertedIndex
 	 * @param invertedIndex the index used
 	 */
 	public QueryParseFile(InvertedIndex invertedIndex) {
+		this(invertedIndex, null);
+	}
+	
+	/**
+	 * Constructor that initializes map and invertedIndex, searching through a
+	 * cache of results
+	 * @param invertedIndex the index used
+	 * @param cache the cache of search results for the index, or null to search the index directly
+	 */
+	public QueryParseFile(InvertedIndex invertedIndex, SearchCache cache) {
 		this.invertedIndex = invertedIndex;
+		this.cache = cache;
 		map = new TreeMap<>();
 	}
 		
@@ -55,7 +71,7 @@ public class QueryParseFile implements QueryParseFileInterface {
 		if (map.containsKey(lineFinal)) {
 			return;
 		}
-		map.put(lineFinal, invertedIndex.search(usedPhrases, match));
+		map.put(lineFinal, cache != null ? cache.search(usedPhrases, match) : invertedIndex.search(usedPhrases, match));
 	}
 	
 	/**
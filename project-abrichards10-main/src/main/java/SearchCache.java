@@ -0,0 +1,464 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded cache of search results, keyed by the sorted stemmed terms of a
+ * search and whether it is exact. Each entry remembers the generation of the
+ * index it was searched at, and is dropped once the index has changed since.
+ *
+ * The cache holds at most a given number of results in total, so one search
+ * matching thousands of locations takes the room of thousands of small ones.
+ * Entries are kept in least recently used order, and a new entry pushes out
+ * the oldest ones unless one of them has been asked for more often than the
+ * new search recently, in which case the new entry is not cached. How often
+ * each search is asked for is estimated by a small count-min sketch whose
+ * counts are halved every so often, so a burst of one-off searches cannot
+ * flush the popular ones out of the cache.
+ *
+ * Lookups and updates share one lock, but searching the index happens outside
+ * of it. The cached lists are unmodifiable and shared between callers.
+ *
+ * @author angelarichards261
+ */
+public class SearchCache {
+
+	/** Rows in the frequency sketch, each with its own hash of the key */
+	private static final int SKETCH_ROWS = 4;
+
+	/** The most a count in the frequency sketch goes up to */
+	private static final int SKETCH_MAX = 15;
+
+	/** The index searched on a miss */
+	private final InvertedIndex invertedIndex;
+
+	/** The most results the cache holds in total */
+	private final long capacity;
+
+	/** The entries, from least to most recently used */
+	private final LinkedHashMap<String, Entry> entries;
+
+	/** The number of results held by the entries */
+	private long weight;
+
+	/** The frequency sketch, one row after another */
+	private final int[] sketch;
+
+	/** Picks a column out of a row of the sketch */
+	private final int mask;
+
+	/** The number of increments since the counts were last halved */
+	private int samples;
+
+	/** Searches answered from the cache */
+	private final LongAdder hits;
+
+	/** Searches that went to the index */
+	private final LongAdder misses;
+
+	/** Entries pushed out to make room */
+	private final LongAdder evictions;
+
+	/** Searches not cached because the entries they would push out were asked for more */
+	private final LongAdder rejections;
+
+	/** Entries dropped because the index changed */
+	private final LongAdder invalidations;
+
+	/**
+	 * Initializes an empty cache
+	 * @param invertedIndex the index searched on a miss, which must be thread-safe if the cache is shared
+	 * @param capacity the most results to hold in total
+	 */
+	public SearchCache(InvertedIndex invertedIndex, long capacity) {
+		this.invertedIndex = invertedIndex;
+		this.capacity = Math.max(1, capacity);
+		this.entries = new LinkedHashMap<>(16, 0.75f, true);
+		this.weight = 0;
+
+		int width = Integer.highestOneBit((int) Math.min(1 << 20, Math.max(1024, this.capacity / 4)));
+		this.sketch = new int[SKETCH_ROWS * width];
+		this.mask = width - 1;
+		this.samples = 0;
+
+		this.hits = new LongAdder();
+		this.misses = new LongAdder();
+		this.evictions = new LongAdder();
+		this.rejections = new LongAdder();
+		this.invalidations = new LongAdder();
+	}
+
+	/**
+	 * Returns the results of a search, from the cache if they are there and
+	 * the index has not changed since, and otherwise from the index
+	 * @param terms cleaned and stemmed search terms
+	 * @param matches true for an exact search
+	 * @return an unmodifiable sorted list of Results
+	 */
+	public List<InvertedIndex.Results> search(Set<String> terms, boolean matches) {
+		List<InvertedIndex.Results> results = get(terms, matches);
+		if(results != null) {
+			return results;
+		}
+
+		long generation = invertedIndex.generation();
+		return put(terms, matches, generation, invertedIndex.search(terms, matches));
+	}
+
+	/**
+	 * Returns the cached results of a search, counting a hit or a miss
+	 * @param terms cleaned and stemmed search terms
+	 * @param matches true for an exact search
+	 * @return an unmodifiable sorted list of Results, or null if not cached or stale
+	 */
+	public List<InvertedIndex.Results> get(Set<String> terms, boolean matches) {
+		String key = key(terms, matches);
+		long generation = invertedIndex.generation();
+
+		synchronized(entries) {
+			increment(key);
+			Entry entry = entries.get(key);
+
+			if(entry != null && entry.generation == generation) {
+				hits.increment();
+				return entry.results;
+			}
+			if(entry != null) {
+				remove(key, entry);
+				invalidations.increment();
+			}
+		}
+
+		misses.increment();
+		return null;
+	}
+
+	/**
+	 * Caches the results of a search if there is room, or if none of the
+	 * entries that would be pushed out is current and asked for more often
+	 * @param terms cleaned and stemmed search terms
+	 * @param matches true for an exact search
+	 * @param generation the generation of the index before the search started
+	 * @param results the sorted list of Results
+	 * @return the results as an unmodifiable list
+	 */
+	public List<InvertedIndex.Results> put(Set<String> terms, boolean matches, long generation, List<InvertedIndex.Results> results) {
+		List<InvertedIndex.Results> unmodifiable = Collections.unmodifiableList(results);
+		long current = invertedIndex.generation();
+
+		// searched at an older generation, so already stale
+		if(generation != current) {
+			return unmodifiable;
+		}
+
+		String key = key(terms, matches);
+		Entry entry = new Entry(unmodifiable, generation);
+
+		synchronized(entries) {
+			Entry old = entries.get(key);
+			if(old != null) {
+				remove(key, old);
+			}
+
+			if(entry.weight > capacity || !makeRoom(key, entry.weight, current)) {
+				rejections.increment();
+				return unmodifiable;
+			}
+
+			entries.put(key, entry);
+			weight += entry.weight;
+		}
+		return unmodifiable;
+	}
+
+	/**
+	 * Pushes out the least recently used entries until another entry fits, as
+	 * long as none of them is both current and asked for more often than the
+	 * new one
+	 * @param key the key of the new entry
+	 * @param needed the weight of the new entry
+	 * @param generation the current generation of the index
+	 * @return false if the room could not be made, in which case nothing was pushed out
+	 */
+	private boolean makeRoom(String key, long needed, long generation) {
+		if(weight + needed <= capacity) {
+			return true;
+		}
+
+		int frequency = frequency(key);
+		List<String> victims = new ArrayList<>();
+		long freed = 0;
+
+		for(Map.Entry<String, Entry> eldest : entries.entrySet()) {
+			if(weight - freed + needed <= capacity) {
+				break;
+			}
+
+			boolean stale = eldest.getValue().generation != generation;
+			if(!stale && frequency(eldest.getKey()) > frequency) {
+				return false;
+			}
+
+			victims.add(eldest.getKey());
+			freed += eldest.getValue().weight;
+		}
+
+		for(String victim : victims) {
+			Entry entry = entries.get(victim);
+			remove(victim, entry);
+
+			if(entry.generation != generation) {
+				invalidations.increment();
+			}
+			else {
+				evictions.increment();
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Removes an entry
+	 * @param key the key of the entry
+	 * @param entry the entry
+	 */
+	private void remove(String key, Entry entry) {
+		entries.remove(key);
+		weight -= entry.weight;
+	}
+
+	/**
+	 * Removes every entry, leaving the metrics and frequencies as they are
+	 */
+	public void clear() {
+		synchronized(entries) {
+			entries.clear();
+			weight = 0;
+		}
+	}
+
+	/**
+	 * Returns the key of a search
+	 * @param terms cleaned and stemmed search terms
+	 * @param matches true for an exact search
+	 * @return the sorted terms joined by spaces, after a mark for the kind of search
+	 */
+	private static String key(Set<String> terms, boolean matches) {
+		Set<String> sorted = terms instanceof SortedSet ? terms : new TreeSet<>(terms);
+		return (matches ? "= " : "~ ") + String.join(" ", sorted);
+	}
+
+	/**
+	 * Counts another request for a key in the sketch, halving every count once
+	 * enough have been counted so old popularity fades
+	 * @param key the key
+	 */
+	private void increment(String key) {
+		int hash = spread(key.hashCode());
+		for(int row = 0; row < SKETCH_ROWS; row++) {
+			int slot = slot(hash, row);
+			if(sketch[slot] < SKETCH_MAX) {
+				sketch[slot]++;
+			}
+		}
+
+		if(++samples >= sketch.length * 10 / SKETCH_ROWS) {
+			for(int i = 0; i < sketch.length; i++) {
+				sketch[i] >>>= 1;
+			}
+			samples /= 2;
+		}
+	}
+
+	/**
+	 * Estimates how often a key has been requested recently
+	 * @param key the key
+	 * @return the smallest of its counts in the sketch
+	 */
+	private int frequency(String key) {
+		int hash = spread(key.hashCode());
+		int frequency = SKETCH_MAX;
+		for(int row = 0; row < SKETCH_ROWS; row++) {
+			frequency = Math.min(frequency, sketch[slot(hash, row)]);
+		}
+		return frequency;
+	}
+
+	/**
+	 * Finds the count of a hash in a row of the sketch
+	 * @param hash the spread hash of the key
+	 * @param row the row
+	 * @return the index of the count
+	 */
+	private int slot(int hash, int row) {
+		int mixed = hash * (0x9E3779B9 + 2 * row) + row;
+		return row * (mask + 1) + ((mixed ^ mixed >>> 16) & mask);
+	}
+
+	/**
+	 * Mixes the bits of a hash code
+	 * @param hash the hash code
+	 * @return the mixed hash
+	 */
+	private static int spread(int hash) {
+		hash ^= hash >>> 16;
+		hash *= 0x85EBCA6B;
+		return hash ^ hash >>> 13;
+	}
+
+	/**
+	 * Returns the hit, miss, eviction and invalidation counts and the size of
+	 * the cache
+	 * @return a snapshot of the metrics
+	 */
+	public Stats stats() {
+		synchronized(entries) {
+			return new Stats(hits.sum(), misses.sum(), evictions.sum(), rejections.sum(),
+					invalidations.sum(), entries.size(), weight, capacity);
+		}
+	}
+
+	/**
+	 * The cached results of one search
+	 * @author angelarichards261
+	 */
+	private static class Entry {
+
+		/** The unmodifiable sorted list of Results */
+		private final List<InvertedIndex.Results> results;
+
+		/** The generation of the index the search was made at */
+		private final long generation;
+
+		/** The room the entry takes, one more than its number of results */
+		private final long weight;
+
+		/**
+		 * Constructor for an entry
+		 * @param results the unmodifiable sorted list of Results
+		 * @param generation the generation of the index the search was made at
+		 */
+		public Entry(List<InvertedIndex.Results> results, long generation) {
+			this.results = results;
+			this.generation = generation;
+			this.weight = results.size() + 1L;
+		}
+	}
+
+	/**
+	 * A snapshot of the cache metrics
+	 * @author angelarichards261
+	 */
+	public static class Stats {
+
+		/** Searches answered from the cache */
+		private final long hits;
+
+		/** Searches that went to the index */
+		private final long misses;
+
+		/** Entries pushed out to make room */
+		private final long evictions;
+
+		/** Searches not cached to keep entries asked for more */
+		private final long rejections;
+
+		/** Entries dropped because the index changed */
+		private final long invalidations;
+
+		/** The number of entries */
+		private final int size;
+
+		/** The number of results held */
+		private final long weight;
+
+		/** The most results the cache holds */
+		private final long capacity;
+
+		/**
+		 * Constructor for the snapshot
+		 * @param hits searches answered from the cache
+		 * @param misses searches that went to the index
+		 * @param evictions entries pushed out to make room
+		 * @param rejections searches not cached to keep entries asked for more
+		 * @param invalidations entries dropped because the index changed
+		 * @param size the number of entries
+		 * @param weight the number of results held
+		 * @param capacity the most results the cache holds
+		 */
+		public Stats(long hits, long misses, long evictions, long rejections, long invalidations,
+				int size, long weight, long capacity) {
+			this.hits = hits;
+			this.misses = misses;
+			this.evictions = evictions;
+			this.rejections = rejections;
+			this.invalidations = invalidations;
+			this.size = size;
+			this.weight = weight;
+			this.capacity = capacity;
+		}
+
+		/**
+		 * Returns the number of searches answered from the cache
+		 * @return the hits
+		 */
+		public long getHits() {
+			return hits;
+		}
+
+		/**
+		 * Returns the number of searches that went to the index
+		 * @return the misses
+		 */
+		public long getMisses() {
+			return misses;
+		}
+
+		/**
+		 * Returns the number of entries pushed out to make room
+		 * @return the evictions
+		 */
+		public long getEvictions() {
+			return evictions;
+		}
+
+		/**
+		 * Returns the number of searches not cached to keep entries asked for more
+		 * @return the rejections
+		 */
+		public long getRejections() {
+			return rejections;
+		}
+
+		/**
+		 * Returns the number of entries dropped because the index changed
+		 * @return the invalidations
+		 */
+		public long getInvalidations() {
+			return invalidations;
+		}
+
+		/**
+		 * Returns the fraction of searches answered from the cache
+		 * @return the hit ratio, or 0 if nothing was searched
+		 */
+		public double getHitRatio() {
+			return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder builder = new StringBuilder();
+			builder.append(String.format("entries: %d holding %d of %d results%n", size, weight, capacity));
+			builder.append(String.format("hits: %d, misses: %d (%.1f%% hits)%n", hits, misses, 100 * getHitRatio()));
+			builder.append(String.format("evictions: %d, rejections: %d, invalidations: %d%n", evictions, rejections, invalidations));
+			return builder.toString();
+		}
+	}
+}
@@ -63,6 +63,9 @@ public class SearchServlet extends HttpServlet {
 	/** Inverted Index **/ 
 	private final InvertedIndex invertedIndex;
 	
+	/** Cache of search results, or null **/
+	private final SearchCache cache;
+	
 	/**
 	 * Initializes this message board. Each message board has its own collection
 	 * of messages.
@@ -73,10 +76,24 @@ public class SearchServlet extends HttpServlet {
 	 * @throws IOException if unable to read template
 	 */
 	public SearchServlet(QueryParseFileInterface query, ThreadSafeInvertedIndex invertedIndex, WebCrawler crawler) throws IOException {
+		this(query, invertedIndex, crawler, null);
+	}
+	
+	/**
+	 * Initializes this message board, answering popular searches from a cache
+	 * 
+	 * @param query the query we initialize 
+	 * @param invertedIndex the index to use
+	 * @param crawler the crawler to use
+	 * @param cache the cache of search results for the index, or null to search the index directly
+	 * @throws IOException if unable to read template
+	 */
+	public SearchServlet(QueryParseFileInterface query, ThreadSafeInvertedIndex invertedIndex, WebCrawler crawler, SearchCache cache) throws IOException {
 		super();
 		queue = new ConcurrentLinkedQueue<>();
 		this.crawler = crawler;
 		this.invertedIndex = invertedIndex;
+		this.cache = cache;
 		
 		Path thispath = BASE.resolve("buildIndex.html");
 
@@ -150,7 +167,7 @@ public class SearchServlet extends HttpServlet {
 		}
 
 		// I need to use partial search instead 
-		List<InvertedIndex.Results> results = this.invertedIndex.search(list, false);
+		List<InvertedIndex.Results> results = cache != null ? cache.search(list, false) : this.invertedIndex.search(list, false);
 
 		if (results.isEmpty()) {
 			queue.clear();
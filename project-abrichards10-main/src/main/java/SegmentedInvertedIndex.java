@@ -0,0 +1,769 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A thread-safe {@link InvertedIndex} with a log-structured layout. New words
+ * go into a small mutable buffer, which is sealed into an immutable
+ * {@link FrozenIndex} segment once it holds enough positions. Segments of
+ * similar size are merged in the background on a {@link WorkQueue} using a
+ * tiered policy, so adding documents never rewrites one big structure.
+ * Searches visit every segment and the buffer and combine their matches.
+ *
+ * @author angelarichards261
+ */
+public class SegmentedInvertedIndex extends ThreadSafeInvertedIndex {
+
+	/** Default number of positions the buffer holds before it is sealed */
+	public static final int DEFAULT_BUFFER_LIMIT = 100_000;
+
+	/** Default number of segments in one tier that triggers a merge */
+	public static final int DEFAULT_FANOUT = 4;
+
+	/** Protects the buffer, the segment list and the sealed counts */
+	private final SimpleReadWriteLock lock;
+
+	/** Held by whichever thread is merging segments, so merges never overlap */
+	private final ReentrantLock mergeLock;
+
+	/** The queue background merges run on, or null to merge on the writer */
+	private final WorkQueue queue;
+
+	/** Positions the buffer holds before it is sealed */
+	private final int bufferLimit;
+
+	/** Number of segments in one tier that triggers a merge */
+	private final int fanout;
+
+	/** Words added since the last seal */
+	private InvertedIndex buffer;
+
+	/** Roughly the number of positions in the buffer */
+	private long buffered;
+
+	/** The sealed segments, oldest first; replaced rather than modified */
+	private List<FrozenIndex> segments;
+
+	/** The word count of each location across all segments */
+	private final TreeMap<String, Integer> sealedCounts;
+
+	/** Positions added by callers */
+	private final AtomicLong added;
+
+	/** Positions written into segments, by seals and merges */
+	private final AtomicLong written;
+
+	/** Number of merges finished */
+	private final AtomicLong merges;
+
+	/** How long searches take */
+	private final WorkQueueMetrics.Histogram searchTimes;
+
+	/**
+	 * Initializes an empty index with the default buffer size and fanout
+	 * @param queue the queue background merges run on, or null to merge on the writer
+	 */
+	public SegmentedInvertedIndex(WorkQueue queue) {
+		this(queue, DEFAULT_BUFFER_LIMIT, DEFAULT_FANOUT);
+	}
+
+	/**
+	 * Initializes an empty index
+	 * @param queue the queue background merges run on, or null to merge on the writer
+	 * @param bufferLimit positions the buffer holds before it is sealed
+	 * @param fanout number of segments in one tier that triggers a merge
+	 */
+	public SegmentedInvertedIndex(WorkQueue queue, int bufferLimit, int fanout) {
+		super();
+		this.lock = new SimpleReadWriteLock(SimpleReadWriteLock.Policy.PHASE_FAIR);
+		this.mergeLock = new ReentrantLock();
+		this.queue = queue;
+		this.bufferLimit = Math.max(1, bufferLimit);
+		this.fanout = Math.max(2, fanout);
+		this.buffer = new InvertedIndex();
+		this.buffered = 0;
+		this.segments = Collections.emptyList();
+		this.sealedCounts = new TreeMap<>();
+		this.added = new AtomicLong();
+		this.written = new AtomicLong();
+		this.merges = new AtomicLong();
+		this.searchTimes = new WorkQueueMetrics.Histogram();
+	}
+
+	@Override
+	public void addElement(String word, String path, int pos) {
+		write("addElement", 1, () -> buffer.addElement(word, path, pos));
+	}
+
+	@Override
+	public void addAll(String[] words, String name) {
+		write("addAll(String[], String)", words.length, () -> buffer.addAll(words, name));
+	}
+
+	@Override
+	public void addAll(String[] words, int start, String name) {
+		write("addAll(String[], int, String)", words.length, () -> buffer.addAll(words, start, name));
+	}
+
+	@Override
+	public void addAll(InvertedIndex index) {
+		long positions = 0;
+		for(int count : index.getCount().values()) {
+			positions += count;
+		}
+		write("addAll(InvertedIndex)", positions, () -> buffer.addAll(index));
+	}
+
+	@Override
+	public void addAll(FrozenIndex index) {
+		SimpleLock write = lock.writeLock("addAll(FrozenIndex)");
+		write.lock();
+		try {
+			addSegment(index);
+			changed();
+			added.addAndGet(index.positionCount());
+		}
+		finally {
+			write.unlock();
+		}
+		scheduleMerge();
+	}
+
+	/**
+	 * Removes a document. Segments only mark the location as deleted, which
+	 * searches skip and the next merge purges, so the cost depends on the size
+	 * of the buffer rather than the whole index.
+	 * @param location the location of the document
+	 */
+	@Override
+	public void removeDocument(String location) {
+		write("removeDocument", 0, () -> delete(location));
+	}
+
+	@Override
+	public void removeDocuments(String prefix) {
+		write("removeDocuments", 0, () -> {
+			buffer.removeDocuments(prefix);
+
+			List<String> removed = new ArrayList<>();
+			sealedCounts.keySet().removeIf(location -> location.startsWith(prefix) && removed.add(location));
+
+			if(!removed.isEmpty()) {
+				List<FrozenIndex> updated = new ArrayList<>(segments.size());
+				for(FrozenIndex segment : segments) {
+					for(String location : removed) {
+						segment = segment.delete(location);
+					}
+					updated.add(segment);
+				}
+				segments = Collections.unmodifiableList(updated);
+			}
+		});
+	}
+
+	@Override
+	public void replaceDocument(String location, InvertedIndex document) {
+		long positions = 0;
+		for(int count : document.getCount().values()) {
+			positions += count;
+		}
+		write("replaceDocument", positions, () -> {
+			delete(location);
+			buffer.addAll(document);
+		});
+	}
+
+	/**
+	 * Removes a location from the buffer and marks it deleted in every segment
+	 * holding it. Must be called while holding the write lock.
+	 * @param location the location of the document
+	 */
+	private void delete(String location) {
+		buffer.removeDocument(location);
+
+		if(sealedCounts.remove(location) != null) {
+			List<FrozenIndex> updated = new ArrayList<>(segments.size());
+			for(FrozenIndex segment : segments) {
+				updated.add(segment.delete(location));
+			}
+			segments = Collections.unmodifiableList(updated);
+		}
+	}
+
+	/**
+	 * Adds to the buffer under the write lock, sealing it if it is full
+	 * @param site the name of the calling method, used when profiling the lock
+	 * @param positions roughly the number of positions being added
+	 * @param adder adds to the buffer
+	 */
+	private void write(String site, long positions, Runnable adder) {
+		boolean sealed = false;
+
+		SimpleLock write = lock.writeLock(site);
+		write.lock();
+		try {
+			adder.run();
+			changed();
+			buffered += positions;
+			added.addAndGet(positions);
+
+			if(buffered >= bufferLimit) {
+				seal();
+				sealed = true;
+			}
+		}
+		finally {
+			write.unlock();
+		}
+
+		if(sealed) {
+			scheduleMerge();
+		}
+	}
+
+	/**
+	 * Packs the buffer into a new segment and starts an empty buffer. Must be
+	 * called while holding the write lock.
+	 */
+	private void seal() {
+		if(buffer.indexSize() > 0 || !buffer.getCount().isEmpty()) {
+			addSegment(buffer.pack());
+		}
+		buffer = new InvertedIndex();
+		buffered = 0;
+	}
+
+	/**
+	 * Appends a segment. Must be called while holding the write lock.
+	 * @param segment the segment
+	 */
+	private void addSegment(FrozenIndex segment) {
+		List<FrozenIndex> updated = new ArrayList<>(segments);
+		updated.add(segment);
+		segments = Collections.unmodifiableList(updated);
+		written.addAndGet(segment.positionCount());
+
+		for(var entry : segment.getCount().entrySet()) {
+			sealedCounts.merge(entry.getKey(), entry.getValue(), Integer::sum);
+		}
+	}
+
+	/**
+	 * Runs the merge policy on the queue, or right away if there is no queue
+	 */
+	private void scheduleMerge() {
+		if(queue != null) {
+			queue.execute(new MergeTasks());
+		}
+		else {
+			mergeTiers();
+		}
+	}
+
+	/**
+	 * Merges segments until no tier is full. Returns at once if another thread
+	 * is already merging, since that thread checks the tiers again before it
+	 * stops.
+	 */
+	private void mergeTiers() {
+		while(mergeCandidates() != null) {
+			if(!mergeLock.tryLock()) {
+				return;
+			}
+			try {
+				List<FrozenIndex> candidates;
+				while((candidates = mergeCandidates()) != null) {
+					replace(candidates, FrozenIndex.merge(candidates));
+				}
+			}
+			finally {
+				mergeLock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Finds the segments to merge next under the tiered policy. A segment is in
+	 * tier t if it holds between fanout^t and fanout^(t + 1) buffers worth of
+	 * positions, and the smallest tier with at least fanout segments is merged.
+	 * @return the segments to merge, or null if no tier is full
+	 */
+	private List<FrozenIndex> mergeCandidates() {
+		List<FrozenIndex> current = segments();
+		TreeMap<Integer, List<FrozenIndex>> tiers = new TreeMap<>();
+
+		for(FrozenIndex segment : current) {
+			tiers.computeIfAbsent(tier(segment), tier -> new ArrayList<>()).add(segment);
+		}
+
+		for(List<FrozenIndex> tier : tiers.values()) {
+			if(tier.size() >= fanout) {
+				return tier.subList(0, fanout);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the tier of a segment
+	 * @param segment the segment
+	 * @return the tier, 0 for segments up to fanout buffers in size
+	 */
+	private int tier(FrozenIndex segment) {
+		long buffers = segment.positionCount() / bufferLimit;
+		int tier = 0;
+
+		while(buffers >= fanout) {
+			buffers /= fanout;
+			tier++;
+		}
+		return tier;
+	}
+
+	/**
+	 * Swaps merged segments for the segment they were merged into, which takes
+	 * the place of the oldest of them. Nothing is swapped if a document was
+	 * deleted from one of the merged segments during the merge, since the
+	 * merged segment would bring it back.
+	 * @param merged the segments that were merged
+	 * @param segment the merged segment
+	 * @return true if the segments were swapped
+	 */
+	private boolean replace(List<FrozenIndex> merged, FrozenIndex segment) {
+		SimpleLock write = lock.writeLock("merge");
+		write.lock();
+		try {
+			for(FrozenIndex candidate : merged) {
+				if(segments.stream().noneMatch(existing -> existing == candidate)) {
+					return false;
+				}
+			}
+
+			List<FrozenIndex> updated = new ArrayList<>(segments.size());
+			boolean placed = false;
+
+			for(FrozenIndex existing : segments) {
+				if(merged.stream().anyMatch(candidate -> candidate == existing)) {
+					if(!placed) {
+						updated.add(segment);
+						placed = true;
+					}
+				}
+				else {
+					updated.add(existing);
+				}
+			}
+			segments = Collections.unmodifiableList(updated);
+			written.addAndGet(segment.positionCount());
+			merges.incrementAndGet();
+			return true;
+		}
+		finally {
+			write.unlock();
+		}
+	}
+
+	/**
+	 * Seals the buffer and merges every segment into one, purging deleted
+	 * documents. Waits for any background merge to finish first.
+	 */
+	@Override
+	public void freeze() {
+		mergeLock.lock();
+		try {
+			SimpleLock write = lock.writeLock("freeze");
+			write.lock();
+			try {
+				seal();
+			}
+			finally {
+				write.unlock();
+			}
+
+			List<FrozenIndex> current = segments();
+			while(current.size() > 1 || (current.size() == 1 && current.get(0).deletedCount() > 0)) {
+				if(replace(current, FrozenIndex.merge(current))) {
+					break;
+				}
+				current = segments();
+			}
+		}
+		finally {
+			mergeLock.unlock();
+		}
+	}
+
+	@Override
+	public boolean isFrozen() {
+		SimpleLock read = lock.readLock("isFrozen");
+		read.lock();
+		try {
+			return buffer.indexSize() == 0 && segments.size() <= 1
+					&& segments.stream().allMatch(segment -> segment.deletedCount() == 0);
+		}
+		finally {
+			read.unlock();
+		}
+	}
+
+	@Override
+	public FrozenIndex pack() {
+		List<FrozenIndex> all;
+
+		SimpleLock read = lock.readLock("pack");
+		read.lock();
+		try {
+			all = new ArrayList<>(segments);
+			if(buffer.indexSize() > 0 || !buffer.getCount().isEmpty()) {
+				all.add(buffer.pack());
+			}
+		}
+		finally {
+			read.unlock();
+		}
+		return all.size() == 1 ? all.get(0) : FrozenIndex.merge(all);
+	}
+
+	/**
+	 * Returns the current segments
+	 * @return an unmodifiable list of the segments, oldest first
+	 */
+	public List<FrozenIndex> segments() {
+		SimpleLock read = lock.readLock("segments");
+		read.lock();
+		try {
+			return segments;
+		}
+		finally {
+			read.unlock();
+		}
+	}
+
+	@Override
+	public List<Results> search(Set<String> terms, boolean matches) {
+		long start = System.nanoTime();
+		ArrayList<Results> results = new ArrayList<>();
+
+		SimpleLock read = lock.readLock("search");
+		read.lock();
+		try {
+			Map<String, long[]> found = new LinkedHashMap<>();
+
+			for(FrozenIndex segment : segments) {
+				Accumulator accumulator = accumulator(segment.locations());
+				long[] counts = accumulator.counts();
+				int[] touched = accumulator.touched();
+				int size = segment.accumulate(terms, matches, counts, touched);
+
+				for(int i = 0; i < size; i++) {
+					found.computeIfAbsent(segment.location(touched[i]), where -> new long[1])[0] += counts[touched[i]];
+				}
+				accumulator.release(size);
+			}
+
+			for(Results result : buffer.search(terms, matches)) {
+				found.computeIfAbsent(result.getWhere(), where -> new long[1])[0] += result.getCount();
+			}
+
+			Map<String, Integer> bufferCounts = buffer.getCount();
+			for(var entry : found.entrySet()) {
+				String where = entry.getKey();
+				int total = sealedCounts.getOrDefault(where, 0) + bufferCounts.getOrDefault(where, 0);
+				results.add(new Results(where, entry.getValue()[0], total));
+			}
+		}
+		finally {
+			read.unlock();
+		}
+
+		Collections.sort(results);
+		searchTimes.record(System.nanoTime() - start);
+		return results;
+	}
+
+	@Override
+	public boolean contains(String word) {
+		SimpleLock read = lock.readLock("contains(String)");
+		read.lock();
+		try {
+			return segments.stream().anyMatch(segment -> segment.contains(word)) || buffer.contains(word);
+		}
+		finally {
+			read.unlock();
+		}
+	}
+
+	@Override
+	public boolean contains(String word, String location) {
+		SimpleLock read = lock.readLock("contains(String, String)");
+		read.lock();
+		try {
+			return segments.stream().anyMatch(segment -> segment.contains(word, location)) || buffer.contains(word, location);
+		}
+		finally {
+			read.unlock();
+		}
+	}
+
+	@Override
+	public boolean contains(String word, String location, Integer position) {
+		SimpleLock read = lock.readLock("contains(String, String, Integer)");
+		read.lock();
+		try {
+			return segments.stream().anyMatch(segment -> segment.contains(word, location, position))
+					|| buffer.contains(word, location, position);
+		}
+		finally {
+			read.unlock();
+		}
+	}
+
+	@Override
+	public Map<String, Integer> getCount() {
+		SimpleLock read = lock.readLock("getCount");
+		read.lock();
+		try {
+			TreeMap<String, Integer> counts = new TreeMap<>(sealedCounts);
+			for(var entry : buffer.getCount().entrySet()) {
+				counts.merge(entry.getKey(), entry.getValue(), Integer::sum);
+			}
+			return Collections.unmodifiableMap(counts);
+		}
+		finally {
+			read.unlock();
+		}
+	}
+
+	@Override
+	public Set<String> getWords() {
+		SimpleLock read = lock.readLock("getWords");
+		read.lock();
+		try {
+			TreeSet<String> words = new TreeSet<>(buffer.getWords());
+			for(FrozenIndex segment : segments) {
+				words.addAll(segment.getWords());
+			}
+			return Collections.unmodifiableSet(words);
+		}
+		finally {
+			read.unlock();
+		}
+	}
+
+	@Override
+	public int indexSize() {
+		return getWords().size();
+	}
+
+	@Override
+	public Set<String> getLocations(String word) {
+		SimpleLock read = lock.readLock("getLocations");
+		read.lock();
+		try {
+			TreeSet<String> locations = new TreeSet<>(buffer.getLocations(word));
+			for(FrozenIndex segment : segments) {
+				locations.addAll(segment.getLocations(word));
+			}
+			return Collections.unmodifiableSet(locations);
+		}
+		finally {
+			read.unlock();
+		}
+	}
+
+	@Override
+	public Set<Integer> getPositions(String word, String location) {
+		SimpleLock read = lock.readLock("getPositions");
+		read.lock();
+		try {
+			TreeSet<Integer> positions = new TreeSet<>(buffer.getPositions(word, location));
+			for(FrozenIndex segment : segments) {
+				positions.addAll(segment.getPositions(word, location));
+			}
+			return Collections.unmodifiableSet(positions);
+		}
+		finally {
+			read.unlock();
+		}
+	}
+
+	/**
+	 * Returns every segment and the buffer merged into a single index
+	 * @return the merged index
+	 */
+	private InvertedIndex snapshot() {
+		InvertedIndex snapshot = new InvertedIndex();
+		snapshot.addAll(pack());
+		return snapshot;
+	}
+
+	@Override
+	public void printIndex(String index) throws IOException {
+		snapshot().printIndex(index);
+	}
+
+	@Override
+	public void toJSON(Path path) throws IOException {
+		pack().toJSON(path, null);
+	}
+
+	@Override
+	public void countsToJSON(Path counts) throws IOException {
+		JSONWriter.asObject(getCount(), counts);
+	}
+
+	@Override
+	public void setLockProfiler(LockProfiler profiler) {
+		lock.setProfiler(profiler);
+	}
+
+	@Override
+	public LockProfiler getLockProfiler() {
+		return lock.getProfiler();
+	}
+
+	/**
+	 * Returns the segment count, write amplification and search latency
+	 * @return a snapshot of the statistics
+	 */
+	public Stats stats() {
+		List<FrozenIndex> current = segments();
+		int[] sizes = new int[current.size()];
+		int deleted = 0;
+
+		for(int i = 0; i < sizes.length; i++) {
+			sizes[i] = current.get(i).positionCount();
+			deleted += current.get(i).deletedCount();
+		}
+		return new Stats(sizes, deleted, added.get(), written.get(), merges.get(), searchTimes.summary());
+	}
+
+	@Override
+	public String toString() {
+		return snapshot().toString();
+	}
+
+	/**
+	 * Runs the merge policy in the background
+	 * @author angelarichards261
+	 */
+	private class MergeTasks implements Runnable {
+		@Override
+		public void run() {
+			mergeTiers();
+		}
+	}
+
+	/**
+	 * Immutable snapshot of the statistics of a segmented index
+	 * @author angelarichards261
+	 */
+	public static class Stats {
+
+		/** The number of positions in each segment, oldest first */
+		private final int[] segmentSizes;
+
+		/** Deleted locations not yet purged, summed over the segments */
+		private final int deleted;
+
+		/** Positions added by callers */
+		private final long added;
+
+		/** Positions written into segments */
+		private final long written;
+
+		/** Merges finished */
+		private final long merges;
+
+		/** How long searches took */
+		private final WorkQueueMetrics.Histogram.Summary searchTime;
+
+		/**
+		 * Initializes the snapshot
+		 * @param segmentSizes the number of positions in each segment
+		 * @param deleted deleted locations not yet purged
+		 * @param added positions added by callers
+		 * @param written positions written into segments
+		 * @param merges merges finished
+		 * @param searchTime the search time summary
+		 */
+		public Stats(int[] segmentSizes, int deleted, long added, long written, long merges,
+				WorkQueueMetrics.Histogram.Summary searchTime) {
+			this.segmentSizes = segmentSizes;
+			this.deleted = deleted;
+			this.added = added;
+			this.written = written;
+			this.merges = merges;
+			this.searchTime = searchTime;
+		}
+
+		/**
+		 * Returns the number of segments
+		 * @return the segment count
+		 */
+		public int getSegmentCount() {
+			return segmentSizes.length;
+		}
+
+		/**
+		 * Returns the number of positions in each segment, oldest first
+		 * @return the segment sizes
+		 */
+		public int[] getSegmentSizes() {
+			return segmentSizes.clone();
+		}
+
+		/**
+		 * Returns the number of deleted locations waiting to be purged by a merge
+		 * @return the number of deleted locations
+		 */
+		public int getDeleted() {
+			return deleted;
+		}
+
+		/**
+		 * Returns the number of merges finished
+		 * @return the merge count
+		 */
+		public long getMerges() {
+			return merges;
+		}
+
+		/**
+		 * Returns how many times each added position has been written into a
+		 * segment on average, counting the seal and every merge
+		 * @return the write amplification, or 0 if nothing was added
+		 */
+		public double getWriteAmplification() {
+			return added == 0 ? 0 : (double) written / added;
+		}
+
+		/**
+		 * Returns how long searches took
+		 * @return the search time summary
+		 */
+		public WorkQueueMetrics.Histogram.Summary getSearchTime() {
+			return searchTime;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder builder = new StringBuilder();
+			builder.append(String.format("segments=%d sizes=%s deleted=%d%n", segmentSizes.length, Arrays.toString(segmentSizes), deleted));
+			builder.append(String.format("added=%d written=%d merges=%d write amplification=%.2f%n",
+					added, written, merges, getWriteAmplification()));
+			builder.append(String.format("search: %s%n", searchTime));
+			return builder.toString();
+		}
+	}
+}
@@ -1,22 +1,32 @@
+import java.lang.invoke.VarHandle;
 import java.util.ConcurrentModificationException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
-import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 /**
  * Maintains a pair of associated locks, one for read-only operations and one
  * for writing. The read lock may be held simultaneously by multiple reader
- * threads, so long as there are no writers. The write lock is exclusive. The 
+ * threads, so long as there are no writers. The write lock is exclusive. The
  * active writer is able to acquire read or write locks as long as it is active.
  *
+ * Which waiting threads go first is decided by the {@link Policy} of the lock.
+ * Readers and writers wait on separate {@link Condition} queues, so releasing
+ * the lock only wakes the threads that are allowed to go next.
+ *
+ * Read-mostly callers may also read without acquiring the lock at all by using
+ * {@link #tryOptimisticRead()} and {@link #validate(long)}, similar to
+ * {@link java.util.concurrent.locks.StampedLock}.
+ *
  * <!-- simplified lock used for this class -->
- * @see SimpleLock 
- * 
+ * @see SimpleLock
+ *
  * <!-- built-in Java locks that are similar (but more complex) -->
  * @see Lock
  * @see ReentrantLock
@@ -28,46 +38,128 @@ import org.apache.logging.log4j.Logger;
  * @version Spring 2021
  */
 public class SimpleReadWriteLock {
+
+	/**
+	 * Decides whether waiting readers or waiting writers go first. Only with
+	 * {@link #READER_PREFERENCE} may a thread holding a read lock take it again,
+	 * since otherwise the second read waits behind a writer that waits for the
+	 * first.
+	 */
+	public enum Policy {
+		/**
+		 * New readers get in whenever no writer is active, even if writers are
+		 * waiting. Gives the best read throughput, but a steady stream of readers
+		 * can starve writers.
+		 */
+		READER_PREFERENCE,
+
+		/**
+		 * New readers wait while any writer is waiting. Writers never starve, but a
+		 * steady stream of writers can starve readers.
+		 */
+		WRITER_PREFERENCE,
+
+		/**
+		 * Read and write phases alternate. Readers that arrive while a writer is
+		 * waiting go after that writer, and all readers waiting when a writer
+		 * finishes go before the next writer, so neither side starves.
+		 */
+		PHASE_FAIR
+	}
+
 	/** The conditional lock used for reading. */
 	private final SimpleLock readerLock;
 
 	/** The conditional lock used for writing. */
 	private final SimpleLock writerLock;
 
+	/** Decides whether waiting readers or writers go first. */
+	private final Policy policy;
+
 	/** The number of active readers. */
 	private int readers;
 
 	/** The number of active writers; */
 	private int writers;
-	
+
+	/** The number of readers waiting for the lock. */
+	private int waitingReaders;
+
+	/** The number of writers waiting for the lock. */
+	private int waitingWriters;
+
+	/** The number of completed write phases, used by {@link Policy#PHASE_FAIR}. */
+	private long writePhase;
+
+	/**
+	 * The number of readers let in by the last writer that have not acquired the
+	 * lock yet. Used by {@link Policy#PHASE_FAIR} to keep the next writer out
+	 * until they have.
+	 */
+	private int admittedReaders;
+
 	/** The thread that holds the write lock. */
 	private Thread activeWriter;
-	
+
+	/**
+	 * Incremented whenever the write lock is acquired or released, so it is odd
+	 * while a writer is active and even otherwise. Starts at 2 so that a stamp
+	 * of 0 never looks valid.
+	 */
+	private final AtomicLong version;
+
+	/** Records wait and hold times per caller site, or null when not profiling. */
+	private volatile LockProfiler profiler;
+
 	/** The log4j2 logger. */
 	private static final Logger log = LogManager.getLogger();
 
 	/**
-	 * The lock object used for synchronized access of readers and writers. For
-	 * security reasons, a separate private final lock object is used.
+	 * The lock used for guarded access of readers and writers. For security
+	 * reasons, a separate private final lock object is used.
 	 *
 	 * @see <a href="https://wiki.sei.cmu.edu/confluence/display/java/LCK00-J.+Use+private+final+lock+objects+to+synchronize+classes+that+may+interact+with+untrusted+code">
 	 *      SEI CERT Oracle Coding Standard for Java</a>
 	 */
-	private final Object lock;
+	private final ReentrantLock lock;
+
+	/** Signalled when waiting readers may be able to acquire the lock. */
+	private final Condition readable;
+
+	/** Signalled when a waiting writer may be able to acquire the lock. */
+	private final Condition writable;
 
 	/**
-	 * Initializes a new simple read/write lock.
+	 * Initializes a new simple read/write lock that prefers readers.
 	 */
 	public SimpleReadWriteLock() {
+		this(Policy.READER_PREFERENCE);
+	}
+
+	/**
+	 * Initializes a new simple read/write lock with the given policy.
+	 *
+	 * @param policy decides whether waiting readers or writers go first
+	 */
+	public SimpleReadWriteLock(Policy policy) {
 		readerLock = new SimpleReadLock();
 		writerLock = new SimpleWriteLock();
+		this.policy = policy;
+
+		lock = new ReentrantLock();
+		readable = lock.newCondition();
+		writable = lock.newCondition();
 
-		lock = new Object();
-		
 		readers = 0;
 		writers = 0;
-		
+		waitingReaders = 0;
+		waitingWriters = 0;
+		writePhase = 0;
+		admittedReaders = 0;
+
 		activeWriter = null;
+		version = new AtomicLong(2);
+		profiler = null;
 	}
 
 	/**
@@ -88,15 +180,116 @@ public class SimpleReadWriteLock {
 		return writerLock;
 	}
 
+	/**
+	 * Returns the reader lock for the given caller site. When a profiler is
+	 * attached, the returned lock records its wait and hold times against the
+	 * site, and must be used for both {@link SimpleLock#lock()} and
+	 * {@link SimpleLock#unlock()}. Otherwise this is the same as
+	 * {@link #readLock()}.
+	 *
+	 * @param site the caller site, such as the calling method name
+	 * @return the reader lock
+	 */
+	public SimpleLock readLock(String site) {
+		LockProfiler profiler = this.profiler;
+		return profiler == null ? readerLock : profiler.wrap(readerLock, site, false);
+	}
+
+	/**
+	 * Returns the writer lock for the given caller site. When a profiler is
+	 * attached, the returned lock records its wait and hold times against the
+	 * site, and must be used for both {@link SimpleLock#lock()} and
+	 * {@link SimpleLock#unlock()}. Otherwise this is the same as
+	 * {@link #writeLock()}.
+	 *
+	 * @param site the caller site, such as the calling method name
+	 * @return the writer lock
+	 */
+	public SimpleLock writeLock(String site) {
+		LockProfiler profiler = this.profiler;
+		return profiler == null ? writerLock : profiler.wrap(writerLock, site, true);
+	}
+
+	/**
+	 * Attaches a profiler that records wait and hold times for locks obtained
+	 * through {@link #readLock(String)} and {@link #writeLock(String)}.
+	 *
+	 * @param profiler the profiler, or null to stop profiling
+	 */
+	public void setProfiler(LockProfiler profiler) {
+		this.profiler = profiler;
+	}
+
+	/**
+	 * Returns the attached profiler.
+	 *
+	 * @return the profiler, or null if the lock is not being profiled
+	 */
+	public LockProfiler getProfiler() {
+		return profiler;
+	}
+
+	/**
+	 * Records the outcome of an optimistic read with the attached profiler, if
+	 * there is one.
+	 *
+	 * @param site the caller site
+	 * @param validated true if the read validated, false if it was retried
+	 *        under the read lock
+	 */
+	public void optimisticRead(String site, boolean validated) {
+		LockProfiler profiler = this.profiler;
+		if (profiler != null) {
+			profiler.optimisticRead(site, validated);
+		}
+	}
+
+	/**
+	 * Returns the policy deciding whether waiting readers or writers go first.
+	 *
+	 * @return the policy
+	 */
+	public Policy policy() {
+		return policy;
+	}
+
+	/**
+	 * Returns a stamp that can later be checked with {@link #validate(long)},
+	 * without acquiring the lock. Any data read between the two calls must be
+	 * discarded if validation fails, since a writer may have modified it.
+	 *
+	 * @return a non-zero stamp, or 0 if a writer currently holds the lock
+	 */
+	public long tryOptimisticRead() {
+		long stamp = version.get();
+		return (stamp & 1) == 0 ? stamp : 0;
+	}
+
+	/**
+	 * Determines whether the write lock has been acquired since the given stamp
+	 * was returned by {@link #tryOptimisticRead()}.
+	 *
+	 * @param stamp the stamp to check
+	 * @return true if no writer has been active since the stamp was issued
+	 */
+	public boolean validate(long stamp) {
+		VarHandle.acquireFence();
+		return stamp != 0 && version.get() == stamp;
+	}
+
 	/**
 	 * Returns the number of active readers.
 	 *
 	 * @return the number of active readers
 	 */
 	public int readers() {
-		synchronized (lock) {
+		lock.lock();
+		try {
 			return readers;
 		}
+		finally {
+			lock.unlock();
+		}
 	}
 
 	/**
@@ -105,9 +298,13 @@ public class SimpleReadWriteLock {
 	 * @return the number of active writers
 	 */
 	public int writers() {
-		synchronized (lock) {
+		lock.lock();
+		try {
 			return writers;
 		}
+		finally {
+			lock.unlock();
+		}
 	}
 
 	/**
@@ -120,9 +317,41 @@ public class SimpleReadWriteLock {
 	 * @see Thread#currentThread()
 	 */
 	public boolean isActiveWriter() {
-		synchronized (lock) {
+		lock.lock();
+		try {
 			return Thread.currentThread().equals(activeWriter);
 		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Determines whether a reader that started waiting during the given write
+	 * phase must keep waiting. Must be called while holding {@link #lock}.
+	 *
+	 * @param phase the write phase when the reader arrived
+	 * @return true if the reader must keep waiting
+	 */
+	private boolean readerMustWait(long phase) {
+		switch (policy) {
+			case WRITER_PREFERENCE:
+				return writers > 0 || waitingWriters > 0;
+			case PHASE_FAIR:
+				return writers > 0 || (waitingWriters > 0 && phase == writePhase);
+			default:
+				return writers > 0;
+		}
+	}
+
+	/**
+	 * Determines whether a writer must keep waiting. Must be called while
+	 * holding {@link #lock}.
+	 *
+	 * @return true if the writer must keep waiting
+	 */
+	private boolean writerMustWait() {
+		return readers > 0 || writers > 0 || admittedReaders > 0;
 	}
 
 	/**
@@ -131,53 +360,65 @@ public class SimpleReadWriteLock {
 	private class SimpleReadLock implements SimpleLock {
 		/**
 		 * If the active thread already holds the write lock, allows it to continue.
-		 * Otherwise, if there are active writers, then the thread is forced to wait
-		 * until there are no active writers left. Once safe, allows the thread to
-		 * acquire a read lock by incrementing the number of active readers.
+		 * Otherwise, waits until the policy allows readers in. Once safe, allows
+		 * the thread to acquire a read lock by incrementing the number of active
+		 * readers.
 		 */
 		@Override
 		public void lock() {
-			log.debug("Acquiring read lock...");
-			
-			synchronized (lock) {
-				while (writers > 0 && !isActiveWriter()) {
-					try {
-						log.debug("Waiting for read lock...");
-						lock.wait();
-						
-						log.debug("Woke up waiting for read lock...");
-					}
-					catch (InterruptedException ex) {
-						log.catching(Level.DEBUG, ex);
-						Thread.currentThread().interrupt();
+			lock.lock();
+			try {
+				if (!isActiveWriter()) {
+					long phase = writePhase;
+
+					if (readerMustWait(phase)) {
+						waitingReaders++;
+						try {
+							do {
+								log.debug("Waiting for read lock...");
+								readable.awaitUninterruptibly();
+							} while (readerMustWait(phase));
+						}
+						finally {
+							waitingReaders--;
+						}
+
+						if (phase != writePhase && admittedReaders > 0) {
+							admittedReaders--;
+						}
 					}
 				}
-				assert writers == 0;
-					readers++;
+				readers++;
+			}
+			finally {
+				lock.unlock();
 			}
-			log.debug("Acquired read lock.");
 		}
 
 		/**
-		 * Will decrease the number of active readers, and notify any waiting
-		 * threads if necessary.
+		 * Will decrease the number of active readers, and wake a waiting writer if
+		 * this was the last reader.
 		 *
 		 * @throws IllegalStateException if no readers to unlock
 		 */
 		@Override
 		public void unlock() throws IllegalStateException {
-			synchronized(lock) {
+			lock.lock();
+			try {
 				if(readers > 0) {
 					readers--;
-				
-					if(readers == 0) {
-						lock.notifyAll();
+
+					if(readers == 0 && waitingWriters > 0) {
+						writable.signal();
 					}
 				}
 				else {
 					throw new IllegalStateException("IllegalStateException");
 				}
 			}
+			finally {
+				lock.unlock();
+			}
 		}
 	}
 
@@ -187,35 +428,45 @@ public class SimpleReadWriteLock {
 	private class SimpleWriteLock implements SimpleLock {
 		/**
 		 * If the active thread already holds the write lock, allows it to continue.
-		 * Otherwise, if there are active readers or writers, then the thread is
-		 * forced to wait until there are no active readers or writers left. Once
-		 * safe, allows the thread to acquire a write lock by setting the active
-		 * writer reference and incrementing the number of active writers.
+		 * Otherwise, if there are active readers or writers, or readers the last
+		 * writer let in first, then the thread is forced to wait. Once safe,
+		 * allows the thread to acquire a write lock by setting the active writer
+		 * reference and incrementing the number of active writers.
 		 */
 		@Override
 		public void lock() {
-			synchronized(lock) {
-
-				while(!isActiveWriter() && (readers > 0 || writers > 0)) {
-					try {
-						lock.wait();
-					} 
-					catch (InterruptedException e) {
-						Thread.currentThread().interrupt();
+			lock.lock();
+			try {
+				if (!isActiveWriter()) {
+					if (writerMustWait()) {
+						waitingWriters++;
+						try {
+							do {
+								log.debug("Waiting for write lock...");
+								writable.awaitUninterruptibly();
+							} while (writerMustWait());
+						}
+						finally {
+							waitingWriters--;
+						}
 					}
+
+					assert writers == 0;
+					assert readers == 0;
+
+					activeWriter = Thread.currentThread();
+					version.incrementAndGet();
 				}
-				
-				assert writers == 0;
-				assert readers == 0;
-				
 				writers++;
-				activeWriter = Thread.currentThread();
+			}
+			finally {
+				lock.unlock();
 			}
 		}
 
 		/**
-		 * Will decrease the number of active writers, and notify any waiting
-		 * threads if necessary.
+		 * Will decrease the number of active writers, and wake whichever waiting
+		 * threads the policy lets go next.
 		 *
 		 * @throws IllegalStateException if no writers to unlock
 		 * @throws ConcurrentModificationException if there are writers but unlock
@@ -223,7 +474,8 @@ public class SimpleReadWriteLock {
 		 */
 		@Override
 		public void unlock() throws IllegalStateException, ConcurrentModificationException {
-			synchronized(lock) {
+			lock.lock();
+			try {
 				if(writers <= 0) {
 					throw new IllegalStateException("IllegalStateException");
 				}
@@ -234,10 +486,35 @@ public class SimpleReadWriteLock {
 					writers--;
 					if(writers == 0) {
 						activeWriter = null;
-						lock.notifyAll();
+						version.incrementAndGet();
+						wakeAfterWrite();
 					}
 				}
 			}
+			finally {
+				lock.unlock();
+			}
+		}
+
+		/**
+		 * Wakes the waiting threads allowed to go after a writer finishes. Must be
+		 * called while holding {@link #lock}.
+		 */
+		private void wakeAfterWrite() {
+			if (policy == Policy.PHASE_FAIR) {
+				writePhase++;
+				admittedReaders = waitingReaders;
+			}
+
+			if (policy == Policy.WRITER_PREFERENCE && waitingWriters > 0) {
+				writable.signal();
+			}
+			else if (waitingReaders > 0) {
+				readable.signalAll();
+			}
+			else if (waitingWriters > 0) {
+				writable.signal();
+			}
 		}
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,291 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Locale;
+
+/**
+ * Reads the cleaned words of a UTF-8 text file, one at a time, giving the
+ * same words in the same order as reading the file line by line and calling
+ * {@link TextParser#parse(String)} on each line.
+ *
+ * The file is read through a {@link FileChannel} into a direct buffer that is
+ * reused by the next reader opened on the same thread. Lines that are plain
+ * ASCII, which is almost all of them in most text, are split into words
+ * straight from the buffer without creating a string for the line or going
+ * through the charset decoder. Any other line is decoded and handed to
+ * {@link TextParser}, so accents, other scripts and case rules still work
+ * exactly as they did.
+ *
+ * @author angelarichards261
+ */
+public class TextFileReader implements Closeable {
+
+	/** Size of the buffer each thread reuses */
+	public static final int BUFFER_SIZE = 1 << 16;
+
+	/** The buffer left behind by the last reader closed on each thread */
+	private static final ThreadLocal<ByteBuffer> POOL = new ThreadLocal<>();
+
+	/**
+	 * Whether lowercasing ASCII letters one at a time matches
+	 * {@link String#toLowerCase()}, which is not true in locales where capital
+	 * I does not become i
+	 */
+	private static final boolean ASCII_LOWERCASE = !Locale.getDefault().getLanguage().equals("tr")
+			&& !Locale.getDefault().getLanguage().equals("az");
+
+	/** The file being read */
+	private final FileChannel channel;
+
+	/** Decodes lines that are not plain ASCII, failing on malformed input */
+	private final CharsetDecoder decoder;
+
+	/** Where the next read from the file starts */
+	private long position;
+
+	/** Where reading stops */
+	private final long end;
+
+	/** Whether everything up to the end has been read into the buffer */
+	private boolean eof;
+
+	/** The bytes read and not yet used, between its position and limit */
+	private ByteBuffer buffer;
+
+	/** Whether the buffer came from the pool and goes back to it */
+	private boolean pooled;
+
+	/** Where the next word of an ASCII line starts in the buffer */
+	private int cursor;
+
+	/** Where the current ASCII line ends in the buffer, or -1 if not in one */
+	private int lineEnd;
+
+	/** The words of the current decoded line */
+	private String[] words;
+
+	/** The next word of the current decoded line */
+	private int word;
+
+	/** The letters of the word being read from an ASCII line */
+	private char[] letters;
+
+	/**
+	 * Opens a file to read all of its words
+	 * @param file the file
+	 * @throws IOException if unable to open the file
+	 */
+	public TextFileReader(Path file) throws IOException {
+		this(file, 0, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Opens a file to read the words of a range of its bytes. The range should
+	 * start at the beginning of a line and end just after a line break or at
+	 * the end of the file.
+	 * @param file the file
+	 * @param start the byte offset to start at
+	 * @param end the byte offset to stop at
+	 * @throws IOException if unable to open the file
+	 */
+	public TextFileReader(Path file, long start, long end) throws IOException {
+		this.channel = FileChannel.open(file);
+		this.decoder = StandardCharsets.UTF_8.newDecoder();
+		this.position = start;
+		this.end = end;
+		this.eof = false;
+		this.buffer = POOL.get();
+		this.pooled = buffer != null;
+		this.cursor = 0;
+		this.lineEnd = -1;
+		this.words = new String[0];
+		this.word = 0;
+		this.letters = new char[64];
+
+		if(pooled) {
+			POOL.remove();
+		}
+		else {
+			buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+		}
+		buffer.clear().limit(0);
+	}
+
+	/**
+	 * Returns the next cleaned word
+	 * @return the next word, or null at the end of the file
+	 * @throws IOException if unable to read the file or it is not valid UTF-8
+	 */
+	public String next() throws IOException {
+		while(true) {
+			if(word < words.length) {
+				return words[word++];
+			}
+
+			if(lineEnd >= 0) {
+				String next = nextAscii();
+				if(next != null) {
+					return next;
+				}
+			}
+
+			if(!nextLine()) {
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * Returns the next word of the current ASCII line, moving past the line
+	 * once it has no more words
+	 * @return the next word, or null if the line has no more
+	 */
+	private String nextAscii() {
+		int length = 0;
+
+		while(cursor < lineEnd) {
+			int b = buffer.get(cursor++);
+
+			if(b >= 'a' && b <= 'z') {
+				length = append(length, (char) b);
+			}
+			else if(b >= 'A' && b <= 'Z') {
+				length = append(length, (char) (b + ('a' - 'A')));
+			}
+			else if(b == ' ' || b >= '\t' && b <= '\r') {
+				if(length > 0) {
+					return new String(letters, 0, length);
+				}
+			}
+			// anything else is removed, joining the letters around it
+		}
+
+		lineEnd = -1;
+		return length > 0 ? new String(letters, 0, length) : null;
+	}
+
+	/**
+	 * Adds a letter to the word being read
+	 * @param length the number of letters so far
+	 * @param letter the letter
+	 * @return the new number of letters
+	 */
+	private int append(int length, char letter) {
+		if(length == letters.length) {
+			char[] larger = new char[length * 2];
+			System.arraycopy(letters, 0, larger, 0, length);
+			letters = larger;
+		}
+		letters[length] = letter;
+		return length + 1;
+	}
+
+	/**
+	 * Moves to the next line, reading more of the file if the whole line is
+	 * not in the buffer yet. An ASCII line is left in the buffer for
+	 * {@link #nextAscii()}, and any other line is decoded and parsed.
+	 * @return false if there are no more lines
+	 * @throws IOException if unable to read the file or it is not valid UTF-8
+	 */
+	private boolean nextLine() throws IOException {
+		int start = buffer.position();
+		int scan = start;
+		boolean ascii = ASCII_LOWERCASE;
+
+		while(true) {
+			int limit = buffer.limit();
+
+			while(scan < limit) {
+				byte b = buffer.get(scan);
+				if(b == '\n' || b == '\r') {
+					break;
+				}
+				if(b < 0) {
+					ascii = false;
+				}
+				scan++;
+			}
+
+			if(scan < limit || eof) {
+				break;
+			}
+
+			// the line continues past the buffer, so keep it and read more
+			scan -= start;
+			fill();
+			start = 0;
+		}
+
+		if(start == scan && scan == buffer.limit()) {
+			return false;
+		}
+
+		if(ascii) {
+			cursor = start;
+			lineEnd = scan;
+		}
+		else {
+			ByteBuffer line = buffer.duplicate();
+			line.position(start).limit(scan);
+			CharBuffer chars = decoder.decode(line);
+			words = TextParser.parse(chars.toString());
+			word = 0;
+		}
+
+		// skip the line break; a carriage return and line feed just leave an empty line
+		buffer.position(scan < buffer.limit() ? scan + 1 : scan);
+		return true;
+	}
+
+	/**
+	 * Moves the unused bytes to the front of the buffer and reads more of the
+	 * file after them, first growing the buffer if it is already full
+	 * @throws IOException if unable to read the file
+	 */
+	private void fill() throws IOException {
+		buffer.compact();
+
+		if(!buffer.hasRemaining()) {
+			ByteBuffer larger = ByteBuffer.allocate(buffer.capacity() * 2);
+			buffer.flip();
+			larger.put(buffer);
+			release();
+			buffer = larger;
+		}
+
+		if(end - position < buffer.remaining()) {
+			buffer.limit(buffer.position() + (int) (end - position));
+		}
+
+		int read = channel.read(buffer, position);
+		if(read > 0) {
+			position += read;
+		}
+		if(read < 0 || position >= end) {
+			eof = true;
+		}
+		buffer.flip();
+	}
+
+	/**
+	 * Returns the pooled buffer to the pool, if this reader still has it
+	 */
+	private void release() {
+		if(pooled) {
+			buffer.clear();
+			POOL.set(buffer);
+			pooled = false;
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		release();
+		channel.close();
+	}
+}
@@ -1,7 +1,4 @@
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -55,12 +52,12 @@ public class TextFileStemmer {
 	public static ArrayList<String> listStems(Path inputFile) throws IOException {
 		ArrayList<String> stemmed = new ArrayList<String>();
 		
-		try(BufferedReader readLine = Files.newBufferedReader(inputFile);) {
-			String line = null;
+		try(TextFileReader reader = new TextFileReader(inputFile);) {
+			String word = null;
 			Stemmer stemmer = new SnowballStemmer(DEFAULT);
 
-			while((line = readLine.readLine()) != null) {
-				stemLine(line, stemmer, stemmed);
+			while((word = reader.next()) != null) {
+				stemmed.add(stemmer.stem(word).toString());
 			}
 		}
 		return stemmed;
@@ -117,12 +114,12 @@ public class TextFileStemmer {
 	public static TreeSet<String> uniqueStems(Path inputFile) throws IOException {
 		Stemmer stemmer = new SnowballStemmer(DEFAULT);
 		TreeSet<String> stemmedWords = new TreeSet<>();
-		try (BufferedReader reader = Files.newBufferedReader(inputFile, StandardCharsets.UTF_8);) {
-			String line = reader.readLine();
+		try (TextFileReader reader = new TextFileReader(inputFile);) {
+			String word = reader.next();
 
-			while (line != null) {
-				stemLine(line, stemmer, stemmedWords);
-				line = reader.readLine();
+			while (word != null) {
+				stemmedWords.add(stemmer.stem(word).toString());
+				word = reader.next();
 			}			
 		}
 		return stemmedWords;
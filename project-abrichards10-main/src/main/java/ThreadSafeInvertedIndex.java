@@ -3,6 +3,8 @@ import java.nio.file.Path;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 /**
  * A thread-safe version of {@link InvertedIndex} using a read/write lock.
@@ -17,186 +19,312 @@ public class ThreadSafeInvertedIndex extends InvertedIndex {
 	private final SimpleReadWriteLock lock;
 
 	/**
-	 * Initializes a thread-safe indexed set.
+	 * Initializes a thread-safe indexed set with a reader-preference lock.
 	 */
 	public ThreadSafeInvertedIndex() {
+		this(SimpleReadWriteLock.Policy.READER_PREFERENCE);
+	}
+
+	/**
+	 * Initializes a thread-safe indexed set using the given lock policy.
+	 * @param policy decides whether waiting readers or writers go first
+	 */
+	public ThreadSafeInvertedIndex(SimpleReadWriteLock.Policy policy) {
 		super();
-		lock = new SimpleReadWriteLock();
+		lock = new SimpleReadWriteLock(policy);
 	}
 
 	@Override
 	public void addElement(String word, String path, int pos) {
-		lock.writeLock().lock();
+		SimpleLock write = lock.writeLock("addElement");
+		write.lock();
 		try {
 			super.addElement(word, path, pos);
 		}
 		finally {
-			lock.writeLock().unlock();
+			write.unlock();
 		}
 	}
 	
 	@Override
 	public void addAll(String[] words, String name) {
-		lock.writeLock().lock();
+		SimpleLock write = lock.writeLock("addAll(String[], String)");
+		write.lock();
 		try {
 			super.addAll(words, name);
 		}
 		finally {
-			lock.writeLock().unlock();
+			write.unlock();
 		}
 	}
 	
 	@Override
 	public void addAll(String[] words, int start, String name) {
-		lock.writeLock().lock();
+		SimpleLock write = lock.writeLock("addAll(String[], int, String)");
+		write.lock();
 		try {
 			super.addAll(words, start, name);
 		}
 		finally {
-			lock.writeLock().unlock();
+			write.unlock();
 		}
 	}
 	
 	@Override // I can't believe this was the problem how tf did I forget this
 	public void addAll(InvertedIndex index){
-		lock.writeLock().lock();
+		SimpleLock write = lock.writeLock("addAll(InvertedIndex)");
+		write.lock();
 		try {
 			super.addAll(index);
 		}
 		finally {
-			lock.writeLock().unlock();
+			write.unlock();
 		}
 	}
 	
 	@Override
-	public List<Results> search(Set<String> terms, boolean matches) {
-		lock.readLock().lock();
+	public void removeDocument(String location) {
+		SimpleLock write = lock.writeLock("removeDocument");
+		write.lock();
 		try {
-			return super.search(terms, matches);
+			super.removeDocument(location);
 		}
 		finally {
-			lock.readLock().unlock();
+			write.unlock();
 		}
 	}
 	
 	@Override
-	public boolean contains(String word) { 
-		lock.readLock().lock();
+	public void removeDocuments(String prefix) {
+		SimpleLock write = lock.writeLock("removeDocuments");
+		write.lock();
 		try {
-			return super.contains(word);
+			super.removeDocuments(prefix);
 		}
 		finally {
-			lock.readLock().unlock();
+			write.unlock();
 		}
 	}
 	
 	@Override
-	public boolean contains(String word, String location) {
-		lock.readLock().lock();
+	public void replaceDocument(String location, InvertedIndex document) {
+		SimpleLock write = lock.writeLock("replaceDocument");
+		write.lock();
 		try {
-			return super.contains(word, location);
+			super.replaceDocument(location, document);
 		}
 		finally {
-			lock.readLock().unlock();
+			write.unlock();
 		}
 	}
 	
 	@Override
-	public boolean contains(String word, String location, Integer position) {
-		lock.readLock().lock();
+	public void freeze() {
+		SimpleLock write = lock.writeLock("freeze");
+		write.lock();
 		try {
-			return super.contains(word, location, position);
+			super.freeze();
 		}
 		finally {
-			lock.readLock().unlock();
+			write.unlock();
 		}
 	}
 	
 	@Override
-	public void printIndex(String index) throws IOException {
-		lock.readLock().lock();
+	public FrozenIndex pack() {
+		SimpleLock read = lock.readLock("pack");
+		read.lock();
 		try {
-			super.printIndex(index);
+			return super.pack();
 		}
 		finally {
-			lock.readLock().unlock();
+			read.unlock();
 		}
 	}
+
+	@Override
+	public boolean isFrozen() {
+		return read("isFrozen", frozen -> true, () -> super.isFrozen());
+	}
 	
 	@Override
-	public void toJSON(Path path) throws IOException {
-		lock.readLock().lock();
+	public void addAll(FrozenIndex index) {
+		SimpleLock write = lock.writeLock("addAll(FrozenIndex)");
+		write.lock();
 		try {
-			super.toJSON(path);
+			super.addAll(index);
 		}
 		finally {
-			lock.readLock().unlock();
+			write.unlock();
 		}
 	}
 	
 	@Override
-	public void countsToJSON(Path counts) throws IOException {
-		lock.readLock().lock();
+	public List<Results> search(Set<String> terms, boolean matches) {
+		SimpleLock read = lock.readLock("search");
+		read.lock();
 		try {
-			super.countsToJSON(counts);
+			return super.search(terms, matches);
 		}
 		finally {
-			lock.readLock().unlock();
+			read.unlock();
 		}
 	}
 	
 	@Override
-	public int indexSize() {
-		lock.readLock().lock();
+	boolean searchFrozen(List<Set<String>> queries, int start, int end, boolean matches, List<List<Results>> found) {
+		// each block takes the lock itself, so no lock is held while waiting on the queue
+		SimpleLock read = lock.readLock("searchFrozen");
+		read.lock();
 		try {
-			return super.indexSize();
+			return super.searchFrozen(queries, start, end, matches, found);
 		}
 		finally {
-			lock.readLock().unlock();
-		}	
+			read.unlock();
+		}
 	}
 	
 	@Override
-	public Map<String, Integer> getCount() {
-		lock.readLock().lock();
+	public boolean contains(String word) {
+		return read("contains(String)", frozen -> frozen.contains(word), () -> super.contains(word));
+	}
+	
+	@Override
+	public boolean contains(String word, String location) {
+		return read("contains(String, String)", frozen -> frozen.contains(word, location), () -> super.contains(word, location));
+	}
+	
+	@Override
+	public boolean contains(String word, String location, Integer position) {
+		return read("contains(String, String, Integer)", frozen -> frozen.contains(word, location, position), () -> super.contains(word, location, position));
+	}
+	
+	@Override
+	public void printIndex(String index) throws IOException {
+		SimpleLock read = lock.readLock("printIndex");
+		read.lock();
 		try {
-			return super.getCount();
+			super.printIndex(index);
 		}
 		finally {
-			lock.readLock().unlock();
+			read.unlock();
 		}
 	}
-
+	
 	@Override
-	public Set<String> getLocations(String word) {
-		lock.readLock().lock();
+	public void toJSON(Path path) throws IOException {
+		// packing holds the read lock, writing the packed copy does not
+		toJSON(path, null);
+	}
+	
+	@Override
+	public void countsToJSON(Path counts) throws IOException {
+		SimpleLock read = lock.readLock("countsToJSON");
+		read.lock();
 		try {
-			return super.getLocations(word);
+			super.countsToJSON(counts);
 		}
 		finally {
-			lock.readLock().unlock();
+			read.unlock();
+		}
+	}
+	
+	@Override
+	public int indexSize() {
+		return read("indexSize", frozen -> frozen.size(), () -> super.indexSize());
+	}
+	
+	@Override
+	public Map<String, Integer> getCount() {
+		SimpleLock read = lock.readLock("getCount");
+		read.lock();
+		try {
+			return super.getCount();
+		}
+		finally {
+			read.unlock();
 		}
 	}
 
+	@Override
+	public Set<String> getWords() {
+		return read("getWords", frozen -> frozen.getWords(), super::getWords);
+	}
+
+	@Override
+	public Set<String> getLocations(String word) {
+		return read("getLocations", frozen -> frozen.getLocations(word), () -> super.getLocations(word));
+	}
+
 	@Override
 	public Set<Integer> getPositions(String word, String location) {
-		lock.readLock().lock();
+		return read("getPositions", frozen -> frozen.getPositions(word, location), () -> super.getPositions(word, location));
+	}
+		
+	/**
+	 * Runs a read-only operation on the frozen form of the index without
+	 * acquiring the read lock, and otherwise under the read lock. The frozen
+	 * form never changes, so reading a stale one is harmless and the stamp
+	 * only decides whether the answer is current. The maps are never read
+	 * without the lock, since walking a tree a writer is rotating can loop
+	 * forever or fail in ways no validation catches afterwards.
+	 * @param <T> the result type
+	 * @param site the name of the calling method, used when profiling the lock
+	 * @param frozenReader the read-only operation on the frozen form
+	 * @param reader the read-only operation on the index
+	 * @return the result of the operation
+	 */
+	private <T> T read(String site, Function<FrozenIndex, T> frozenReader, Supplier<T> reader) {
+		long stamp = lock.tryOptimisticRead();
+
+		if(stamp != 0) {
+			FrozenIndex frozen = frozen();
+			if(frozen != null) {
+				T result = frozenReader.apply(frozen);
+				if(lock.validate(stamp)) {
+					lock.optimisticRead(site, true);
+					return result;
+				}
+			}
+		}
+		lock.optimisticRead(site, false);
+
+		SimpleLock read = lock.readLock(site);
+		read.lock();
 		try {
-			return super.getPositions(word, location);
+			return reader.get();
 		}
 		finally {
-			lock.readLock().unlock();
+			read.unlock();
 		}
 	}
-		
+
+	/**
+	 * Starts or stops recording wait and hold times for the lock, grouped by the
+	 * method taking the lock
+	 * @param profiler the profiler to record to, or null to stop recording
+	 */
+	public void setLockProfiler(LockProfiler profiler) {
+		lock.setProfiler(profiler);
+	}
+
+	/**
+	 * Returns the profiler recording wait and hold times for the lock
+	 * @return the profiler, or null if the lock is not being profiled
+	 */
+	public LockProfiler getLockProfiler() {
+		return lock.getProfiler();
+	}
+
 	@Override
 	public String toString() {
-		lock.readLock().lock();
+		SimpleLock read = lock.readLock("toString");
+		read.lock();
 		try {
 			return super.toString();
 		}
 		finally {
-			lock.readLock().unlock();
+			read.unlock();
 		}
 	}
 }
@@ -1,9 +1,41 @@
+import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import opennlp.tools.stemmer.Stemmer;
+import opennlp.tools.stemmer.snowball.SnowballStemmer;
 
 /**
  * Thread safe inverted index that the Driver can output
  * 
+ * Each worker thread indexes files into its own local index, which is only
+ * merged into the shared index once it holds {@link #FLUSH_THRESHOLD} words,
+ * or when {@link #finish()} merges the remaining local indexes pairwise in
+ * parallel. This keeps the shared write lock from being taken once per file.
+ * 
+ * Directories are listed in parallel on the work queue, one task per
+ * directory, and the files found are then submitted largest first so a few
+ * huge files do not leave a long tail on one worker. A file of at least
+ * {@link #SPLIT_THRESHOLD} bytes is split at line breaks into chunks that are
+ * stemmed in parallel, and the chunks are put back together in order so every
+ * position matches what {@link InvertedIndexBuilder#addPath(Path, InvertedIndex)}
+ * would give.
+ * 
  * @version Spring 2021
  * @author angelarichards261
  */
@@ -19,6 +51,33 @@ public class ThreadSafeInvertedIndexBuilder extends InvertedIndexBuilder {
 	 */
 	private final ThreadSafeInvertedIndex invertedIndex;
 	
+	/**
+	 * Number of words a worker's local index may hold before it is merged
+	 * into the shared index
+	 */
+	public static final int FLUSH_THRESHOLD = 250_000;
+	
+	/**
+	 * Size in bytes from which a file is split into chunks indexed in parallel
+	 */
+	public static final long SPLIT_THRESHOLD = 32L * 1024 * 1024;
+	
+	/**
+	 * Target size in bytes of each chunk of a split file
+	 */
+	public static final int CHUNK_SIZE = 8 * 1024 * 1024;
+	
+	/**
+	 * The local index of each worker thread that has not been merged yet
+	 */
+	private final ConcurrentHashMap<Thread, LocalIndex> buffers;
+	
+	/**
+	 * Paths with an update queued or running, mapped to true if they changed
+	 * again since that update started
+	 */
+	private final ConcurrentHashMap<Path, Boolean> updating;
+	
 	/**
 	 * Constructor for this thread-safe inverted index
 	 * @param invertedIndex the index we initialize
@@ -28,17 +87,183 @@ public class ThreadSafeInvertedIndexBuilder extends InvertedIndexBuilder {
 		super(invertedIndex);
 		this.invertedIndex = invertedIndex;
 		this.queue = queue;
+		this.buffers = new ConcurrentHashMap<>();
+		this.updating = new ConcurrentHashMap<>();
 	}
 	
 	@Override
 	public void traverseDirectory(Path path) throws IOException {
-		super.traverseDirectory(path);
+		if(Files.isRegularFile(path)) {
+			addPath(path);
+		}
+		else {
+			for(TextFile file : discover(path)) {
+				add(file.path, file.size);
+			}
+		}
+		finish();
+	}
+	
+	/**
+	 * Finds every text file under a directory, listing subdirectories in
+	 * parallel on the work queue
+	 * @param path the directory
+	 * @return the text files, largest first
+	 */
+	public List<TextFile> discover(Path path) {
+		ConcurrentLinkedQueue<TextFile> found = new ConcurrentLinkedQueue<>();
+		
+		queue.execute(new DiscoveryTasks(path, found, List.of()));
+		queue.finish();
+		
+		List<TextFile> files = new ArrayList<>(found);
+		files.sort(Comparator.comparingLong((TextFile file) -> file.size).reversed());
+		return files;
+	}
+	
+	/**
+	 * Waits for all queued files to be indexed, then merges the local index of
+	 * every worker into the shared index. The local indexes are merged in pairs
+	 * on the work queue, halving their number each round, so the shared write
+	 * lock is only taken once for the final result.
+	 */
+	public void finish() {
 		queue.finish();
+		
+		List<InvertedIndex> pending = new ArrayList<>();
+		for(LocalIndex local : buffers.values()) {
+			pending.add(local.index);
+		}
+		buffers.clear();
+		
+		while(pending.size() > 1) {
+			List<InvertedIndex> merged = new ArrayList<>();
+			
+			for(int i = 0; i + 1 < pending.size(); i += 2) {
+				queue.execute(new MergeTasks(pending.get(i), pending.get(i + 1)));
+				merged.add(pending.get(i));
+			}
+			if(pending.size() % 2 == 1) {
+				merged.add(pending.get(pending.size() - 1));
+			}
+			queue.finish();
+			pending = merged;
+		}
+		
+		if(!pending.isEmpty()) {
+			invertedIndex.addAll(pending.get(0));
+		}
 	}
 	
 	@Override
 	public void addPath(Path file) throws IOException {
-		queue.execute(new IndexBuilderTasks(file));
+		add(file, Files.size(file));
+	}
+	
+	/**
+	 * Queues a file to be indexed, splitting it into chunks if it is large
+	 * @param file the file
+	 * @param size the size of the file in bytes
+	 * @throws IOException if unable to find the chunk boundaries
+	 */
+	private void add(Path file, long size) throws IOException {
+		if(size < SPLIT_THRESHOLD) {
+			queue.execute(new IndexBuilderTasks(file));
+			return;
+		}
+		
+		List<Long> boundaries = split(file, size);
+		SplitFile split = new SplitFile(file, boundaries.size() - 1);
+		
+		for(int i = 0; i + 1 < boundaries.size(); i++) {
+			queue.execute(new ChunkTasks(split, i, boundaries.get(i), boundaries.get(i + 1)));
+		}
+	}
+	
+	/**
+	 * Finds where to split a file into chunks of about {@link #CHUNK_SIZE}
+	 * bytes. Each chunk ends just after a line feed, so no line is cut in two
+	 * and a carriage return stays next to the line feed after it.
+	 * @param file the file
+	 * @param size the size of the file in bytes
+	 * @return the byte offset of the start of each chunk, followed by the size
+	 * @throws IOException if unable to read the file
+	 */
+	public static List<Long> split(Path file, long size) throws IOException {
+		List<Long> boundaries = new ArrayList<>();
+		boundaries.add(0L);
+		
+		try(FileChannel channel = FileChannel.open(file)) {
+			ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+			long position = CHUNK_SIZE;
+			
+			while(position < size) {
+				long boundary = -1;
+				
+				while(boundary < 0 && position < size) {
+					buffer.clear();
+					int read = channel.read(buffer, position);
+					if(read <= 0) {
+						break;
+					}
+					
+					for(int i = 0; i < read; i++) {
+						if(buffer.get(i) == '\n') {
+							boundary = position + i + 1;
+							break;
+						}
+					}
+					
+					if(boundary < 0) {
+						position += read;
+					}
+				}
+				
+				if(boundary < 0 || boundary >= size) {
+					break;
+				}
+				boundaries.add(boundary);
+				position = boundary + CHUNK_SIZE;
+			}
+		}
+		
+		boundaries.add(size);
+		return boundaries;
+	}
+	
+	/**
+	 * Adds the index of one file to the local index of the current worker,
+	 * merging the local index into the shared index once it is large enough
+	 * @param index the index of the file
+	 * @param location the file
+	 */
+	private void buffer(InvertedIndex index, String location) {
+		Thread worker = Thread.currentThread();
+		LocalIndex local = buffers.computeIfAbsent(worker, thread -> new LocalIndex());
+		local.index.addAll(index);
+		local.words += index.getCount().getOrDefault(location, 0);
+		
+		if(local.words >= FLUSH_THRESHOLD) {
+			buffers.remove(worker);
+			invertedIndex.addAll(local.index);
+		}
+	}
+	
+	/**
+	 * Brings the shared index up to date with a changed path on the work queue,
+	 * skipping the per-worker buffers so searches see the change as soon as
+	 * the task runs. A text file is re-indexed, a directory has all of its
+	 * text files re-indexed, and a path that no longer exists has every
+	 * location at or under it removed. Updates of the same path run one at a
+	 * time: a path that changes while its update is queued or running is
+	 * updated again once that finishes, so an older read of a file can never
+	 * land after a newer one.
+	 * @param path the path that changed
+	 */
+	public void update(Path path) {
+		if(!updating.merge(path, Boolean.FALSE, (running, again) -> Boolean.TRUE)) {
+			queue.execute(new UpdateTasks(path));
+		}
 	}
 	
 	/**
@@ -71,7 +296,400 @@ public class ThreadSafeInvertedIndexBuilder extends InvertedIndexBuilder {
 			} catch (IOException e) {
 				System.out.println("Cannot invoke run() method in ThreadSafeInvertedIndexBuilder");
 			}
-			invertedIndex.addAll(index);
+			
+			buffer(index, file.toString());
 		}
 	}
+	
+	/**
+	 * A large file being indexed in chunks, holding the stemmed words of each
+	 * chunk until the last one is done
+	 * @author angelarichards261
+	 */
+	private class SplitFile {
+		
+		/**
+		 * The file
+		 */
+		private final Path file;
+		
+		/**
+		 * The stemmed words of each chunk, in order, or null for a chunk that
+		 * could not be read
+		 */
+		private final String[][] chunks;
+		
+		/**
+		 * The number of chunks not done yet
+		 */
+		private final AtomicInteger remaining;
+		
+		/**
+		 * Constructor for the split file
+		 * @param file the file
+		 * @param count the number of chunks
+		 */
+		public SplitFile(Path file, int count) {
+			this.file = file;
+			this.chunks = new String[count][];
+			this.remaining = new AtomicInteger(count);
+		}
+		
+		/**
+		 * Records the words of one chunk, and once every chunk is done numbers
+		 * the words from where the chunks before them left off and indexes them
+		 * @param chunk the chunk
+		 * @param words the stemmed words of the chunk, or null if it could not be read
+		 */
+		public void done(int chunk, String[] words) {
+			chunks[chunk] = words;
+			
+			if(remaining.decrementAndGet() > 0) {
+				return;
+			}
+			
+			String location = file.toString();
+			InvertedIndex index = new InvertedIndex();
+			int start = 1;
+			
+			for(String[] next : chunks) {
+				if(next == null) {
+					// like a sequential read, keep what came before the failure
+					break;
+				}
+				index.addAll(next, start, location);
+				start += next.length;
+			}
+			
+			buffer(index, location);
+		}
+	}
+	
+	/**
+	 * Runnable that stems the words of one chunk of a large file
+	 * @author angelarichards261
+	 */
+	private class ChunkTasks implements Runnable {
+		
+		/**
+		 * The file the chunk belongs to
+		 */
+		private final SplitFile split;
+		
+		/**
+		 * The number of the chunk within the file
+		 */
+		private final int chunk;
+		
+		/**
+		 * The byte offset where the chunk starts
+		 */
+		private final long start;
+		
+		/**
+		 * The byte offset just after the chunk
+		 */
+		private final long end;
+		
+		/**
+		 * Constructor for the chunk task
+		 * @param split the file the chunk belongs to
+		 * @param chunk the number of the chunk within the file
+		 * @param start the byte offset where the chunk starts
+		 * @param end the byte offset just after the chunk
+		 */
+		public ChunkTasks(SplitFile split, int chunk, long start, long end) {
+			this.split = split;
+			this.chunk = chunk;
+			this.start = start;
+			this.end = end;
+		}
+		
+		@Override
+		public void run() {
+			String[] words = null;
+			
+			try {
+				words = stem();
+			}
+			catch(IOException e) {
+				System.out.println("Unable to read " + split.file + " from byte " + start);
+			}
+			
+			split.done(chunk, words);
+		}
+		
+		/**
+		 * Reads and stems the words of the chunk the same way
+		 * {@link InvertedIndexBuilder#addPath(Path, InvertedIndex)} does
+		 * @return the stemmed words, in order
+		 * @throws IOException if unable to read the chunk or it is not valid UTF-8
+		 */
+		private String[] stem() throws IOException {
+			Stemmer stemmer = new SnowballStemmer(DEFAULT);
+			List<String> words = new ArrayList<>();
+			
+			try(TextFileReader reader = new TextFileReader(split.file, start, end)) {
+				String word = reader.next();
+				
+				while(word != null) {
+					words.add(stemmer.stem(word).toString());
+					word = reader.next();
+				}
+			}
+			return words.toArray(new String[0]);
+		}
+	}
+	
+	/**
+	 * Runnable that lists one directory, keeping its text files and queuing a
+	 * task for each subdirectory
+	 * @author angelarichards261
+	 */
+	private class DiscoveryTasks implements Runnable {
+		
+		/**
+		 * The directory to list
+		 */
+		private final Path directory;
+		
+		/**
+		 * Where to put the text files found
+		 */
+		private final ConcurrentLinkedQueue<TextFile> found;
+		
+		/**
+		 * The file keys of the directories above this one, so a link back to
+		 * one of them is not followed forever
+		 */
+		private final List<Object> ancestors;
+		
+		/**
+		 * Constructor for the discovery task
+		 * @param directory the directory to list
+		 * @param found where to put the text files found
+		 * @param ancestors the file keys of the directories above this one
+		 */
+		public DiscoveryTasks(Path directory, ConcurrentLinkedQueue<TextFile> found, List<Object> ancestors) {
+			this.directory = directory;
+			this.found = found;
+			this.ancestors = ancestors;
+		}
+		
+		@Override
+		public void run() {
+			try {
+				// a depth of one visits each entry once, with its attributes from a single stat call
+				Files.walkFileTree(directory, EnumSet.of(FileVisitOption.FOLLOW_LINKS), 1, new SimpleFileVisitor<Path>() {
+					
+					/** The ancestors of the subdirectories of this directory */
+					private List<Object> path = ancestors;
+					
+					@Override
+					public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+						Object key = attrs.fileKey() != null ? attrs.fileKey() : dir.toAbsolutePath().normalize();
+						if(ancestors.contains(key)) {
+							return FileVisitResult.SKIP_SUBTREE;
+						}
+						
+						path = new ArrayList<>(ancestors);
+						path.add(key);
+						return FileVisitResult.CONTINUE;
+					}
+					
+					@Override
+					public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+						if(attrs.isDirectory()) {
+							queue.execute(new DiscoveryTasks(file, found, path));
+						}
+						else if(attrs.isRegularFile() && hasTextExtension(file)) {
+							found.add(new TextFile(file, attrs.size()));
+						}
+						return FileVisitResult.CONTINUE;
+					}
+					
+					@Override
+					public FileVisitResult visitFileFailed(Path file, IOException e) {
+						return FileVisitResult.CONTINUE;
+					}
+				});
+			}
+			catch(IOException e) {
+				System.out.println("Unable to list " + directory);
+			}
+		}
+	}
+	
+	/**
+	 * A text file found during discovery and its size
+	 * @author angelarichards261
+	 */
+	public static class TextFile {
+		
+		/**
+		 * The file
+		 */
+		private final Path path;
+		
+		/**
+		 * The size of the file in bytes
+		 */
+		private final long size;
+		
+		/**
+		 * Constructor for the text file
+		 * @param path the file
+		 * @param size the size of the file in bytes
+		 */
+		public TextFile(Path path, long size) {
+			this.path = path;
+			this.size = size;
+		}
+		
+		/**
+		 * Returns the file
+		 * @return the file
+		 */
+		public Path getPath() {
+			return path;
+		}
+		
+		/**
+		 * Returns the size of the file
+		 * @return the size in bytes
+		 */
+		public long getSize() {
+			return size;
+		}
+	}
+	
+	/**
+	 * Runnable that brings the shared index up to date with one changed path
+	 * @author angelarichards261
+	 */
+	private class UpdateTasks implements Runnable {
+		
+		/**
+		 * The path that changed
+		 */
+		private final Path path;
+		
+		/**
+		 * Constructor for the update task
+		 * @param path the path that changed
+		 */
+		public UpdateTasks(Path path) {
+			this.path = path;
+		}
+		
+		@Override
+		public void run() {
+			boolean again = true;
+			try {
+				while(again) {
+					apply();
+					again = !updating.remove(path, Boolean.FALSE);
+					if(again) {
+						updating.put(path, Boolean.FALSE);
+					}
+				}
+			}
+			finally {
+				if(again) {
+					updating.remove(path);
+				}
+			}
+		}
+		
+		/**
+		 * Brings the shared index up to date with the path as it is now
+		 */
+		private void apply() {
+			try {
+				if(Files.isDirectory(path)) {
+					try(Stream<Path> subPaths = Files.walk(path, FileVisitOption.FOLLOW_LINKS)) {
+						var iterator = subPaths.iterator();
+						while(iterator.hasNext()) {
+							Path next = iterator.next();
+							if(isText(next)) {
+								replace(next);
+							}
+						}
+					}
+				}
+				else if(Files.isRegularFile(path)) {
+					if(isText(path)) {
+						replace(path);
+					}
+				}
+				else {
+					invertedIndex.removeDocument(path.toString());
+					invertedIndex.removeDocuments(path.toString() + File.separator);
+				}
+			}
+			catch(IOException e) {
+				System.out.println("Unable to update " + path);
+			}
+		}
+		
+		/**
+		 * Re-indexes a file in the shared index
+		 * @param file the file
+		 * @throws IOException if unable to read the file
+		 */
+		private void replace(Path file) throws IOException {
+			InvertedIndex document = new InvertedIndex();
+			InvertedIndexBuilder.addPath(file, document);
+			invertedIndex.replaceDocument(file.toString(), document);
+		}
+	}
+	
+	/**
+	 * Runnable that merges one local index into another
+	 * @author angelarichards261
+	 */
+	private static class MergeTasks implements Runnable {
+		
+		/**
+		 * The index merged into
+		 */
+		private final InvertedIndex target;
+		
+		/**
+		 * The index merged from
+		 */
+		private final InvertedIndex source;
+		
+		/**
+		 * Constructor for the merge task
+		 * @param target the index merged into
+		 * @param source the index merged from
+		 */
+		public MergeTasks(InvertedIndex target, InvertedIndex source) {
+			this.target = target;
+			this.source = source;
+		}
+		
+		@Override
+		public void run() {
+			target.addAll(source);
+		}
+	}
+	
+	/**
+	 * A worker's local index and the number of words added to it
+	 * @author angelarichards261
+	 */
+	private static class LocalIndex {
+		
+		/**
+		 * The words indexed by this worker that have not been merged yet
+		 */
+		private final InvertedIndex index = new InvertedIndex();
+		
+		/**
+		 * The number of words in the index
+		 */
+		private int words = 0;
+	}
 }
\ No newline at end of file
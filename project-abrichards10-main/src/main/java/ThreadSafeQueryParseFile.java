@@ -1,11 +1,18 @@
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
 
 /**
  * This class implements the BuildQueryInterface 
@@ -25,6 +32,12 @@ public class ThreadSafeQueryParseFile implements QueryParseFileInterface {
 	 */
 	private final TreeMap<String, List<InvertedIndex.Results>> lock;
 	
+	/**
+	 * Queries being searched right now, guarded by the lock, so a duplicate
+	 * line skips the search instead of running it again
+	 */
+	private final Set<String> pending;
+	
 	/**
 	 * Keeps track of the number of threads
 	 */
@@ -35,23 +48,116 @@ public class ThreadSafeQueryParseFile implements QueryParseFileInterface {
 	 */
 	private final ThreadSafeInvertedIndex invertedIndex;
 	
+	/**
+	 * Cache of search results shared with other searchers, or null
+	 */
+	private final SearchCache cache;
+	
 	/**
 	 * Constructor that initializes the index, lock and number of threads
 	 * @param invertedIndex the index
 	 * @param queue the WorkQueue we initialize
 	 */
 	public ThreadSafeQueryParseFile(ThreadSafeInvertedIndex invertedIndex, WorkQueue queue) {
+		this(invertedIndex, queue, null);
+	}
+	
+	/**
+	 * Constructor that initializes the index, lock and number of threads,
+	 * searching through a cache of results
+	 * @param invertedIndex the index
+	 * @param queue the WorkQueue we initialize
+	 * @param cache the cache of search results for the index, or null to search the index directly
+	 */
+	public ThreadSafeQueryParseFile(ThreadSafeInvertedIndex invertedIndex, WorkQueue queue, SearchCache cache) {
 		this.invertedIndex = invertedIndex;
 		this.queue = queue; 
+		this.cache = cache;
 		this.lock = new TreeMap<>();
+		this.pending = new HashSet<>();
 	}
 
+	/**
+	 * Searches every query in the file as one batch, so a word shared by many
+	 * queries has its postings scanned once per block of queries instead of
+	 * once per query. The lines are stemmed in parallel in chunks of
+	 * {@link ExternalQueryParseFile#CHUNK_LINES} while the rest of the file is
+	 * read, and duplicate lines are searched once.
+	 */
 	@Override
 	public void parseQueriesInFile(Path input, boolean match) throws IOException {
-		QueryParseFileInterface.super.parseQueriesInFile(input, match);
-		queue.finish();
+		if(Files.isDirectory(input)) {
+			throw new IOException("Wrong file for query path");
+		}
+		
+		List<StemTasks> tasks = new ArrayList<>();
+		try(BufferedReader reader = Files.newBufferedReader(input, StandardCharsets.UTF_8)) {
+			List<String> chunk = new ArrayList<>();
+			String line;
+			while((line = reader.readLine()) != null) {
+				chunk.add(line);
+				if(chunk.size() == ExternalQueryParseFile.CHUNK_LINES) {
+					tasks.add(stem(chunk));
+					chunk = new ArrayList<>();
+				}
+			}
+			if(!chunk.isEmpty()) {
+				tasks.add(stem(chunk));
+			}
+		}
+		
+		LinkedHashMap<String, Set<String>> queries = new LinkedHashMap<>();
+		for(StemTasks task : tasks) {
+			for(Set<String> usedPhrases : task.await()) {
+				if(!usedPhrases.isEmpty()) {
+					queries.putIfAbsent(String.join(" ", usedPhrases), usedPhrases);
+				}
+			}
+		}
+		
+		synchronized(lock) {
+			queries.keySet().removeAll(lock.keySet());
+		}
+		
+		if(cache != null) {
+			var iterator = queries.entrySet().iterator();
+			while(iterator.hasNext()) {
+				var entry = iterator.next();
+				var cached = cache.get(entry.getValue(), match);
+				
+				if(cached != null) {
+					synchronized(lock) {
+						lock.putIfAbsent(entry.getKey(), cached);
+					}
+					iterator.remove();
+				}
+			}
+		}
+		
+		long generation = invertedIndex.generation();
+		List<String> lines = new ArrayList<>(queries.keySet());
+		List<Set<String>> terms = new ArrayList<>(queries.values());
+		List<List<InvertedIndex.Results>> found = invertedIndex.search(terms, match, queue);
+		
+		synchronized(lock) {
+			for(int i = 0; i < lines.size(); i++) {
+				var results = cache != null ? cache.put(terms.get(i), match, generation, found.get(i)) : found.get(i);
+				lock.putIfAbsent(lines.get(i), results);
+			}
+		}
 	}	
 	
+	/**
+	 * Queues the stemming of a chunk of query lines
+	 * @param lines the lines of the chunk
+	 * @return the task, to wait on for the stems of each line
+	 */
+	private StemTasks stem(List<String> lines) {
+		StemTasks task = new StemTasks(lines);
+		queue.execute(task);
+		return task;
+	}
+	
 	@Override
 	public void parseQuery(String query, boolean match) {
 		queue.execute(new QueryParseFileTasks(query, match));
@@ -93,21 +199,94 @@ public class ThreadSafeQueryParseFile implements QueryParseFileInterface {
 		@Override
 		public void run() {
 			Set<String> usedPhrases = TextFileStemmer.uniqueStems(query);
+			if (usedPhrases.isEmpty()) {
+				return;
+			}
 			String lineFinal = String.join(" ", usedPhrases);
 			
+			// the first task for a query claims it, so duplicates never search
 			synchronized(lock) {
-				if (usedPhrases.isEmpty()) {
+				if (lock.containsKey(lineFinal) || !pending.add(lineFinal)) {
 					return;
 				}
-				if (lock.containsKey(lineFinal)) {
-					return;
+			}
+			
+			try {
+				var local = cache != null ? cache.search(usedPhrases, matches) : invertedIndex.search(usedPhrases, matches);
+				
+				synchronized(lock) {
+					lock.put(lineFinal, local);
 				}
 			}
-			var local = invertedIndex.search(usedPhrases, matches);
+			finally {
+				synchronized(lock) {
+					pending.remove(lineFinal);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Inner class to stem a chunk of query lines
+	 * @author angelarichards261
+	 */
+	private static class StemTasks implements Runnable {
+		
+		/** The lines to stem */
+		private final List<String> lines;
+		
+		/** The unique stems of each line, in the same order */
+		private final List<Set<String>> stems;
+		
+		/** Counted down once the chunk is stemmed or stemming failed */
+		private final CountDownLatch done;
+		
+		/** What went wrong while stemming, or null */
+		private volatile RuntimeException failure;
+		
+		/**
+		 * Constructor for the stemming task
+		 * @param lines the lines to stem
+		 */
+		public StemTasks(List<String> lines) {
+			this.lines = lines;
+			this.stems = new ArrayList<>(lines.size());
+			this.done = new CountDownLatch(1);
+			this.failure = null;
+		}
+		
+		@Override
+		public void run() {
+			try {
+				for(String line : lines) {
+					stems.add(TextFileStemmer.uniqueStems(line));
+				}
+			}
+			catch(RuntimeException e) {
+				failure = e;
+			}
+			finally {
+				done.countDown();
+			}
+		}
+		
+		/**
+		 * Waits for the chunk to be stemmed
+		 * @return the unique stems of each line
+		 */
+		public List<Set<String>> await() {
+			try {
+				done.await();
+			}
+			catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("Interrupted while stemming", e);
+			}
 			
-			synchronized(lock) {
-				lock.put(lineFinal, local);
+			if(failure != null) {
+				throw failure;
 			}
+			return stems;
 		}
 	}
-}
\ No newline at end of file
+}
@@ -108,7 +108,7 @@ public class WebCrawler {
 				index.addElement(stemmed_words, url.toString(), count);
 				count++;
 			}
-			invertedIndex.addAll(index);	
+			invertedIndex.replaceDocument(url.toString(), index);
 		} 
 	}
 }
\ No newline at end of file
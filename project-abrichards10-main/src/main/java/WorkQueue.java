@@ -24,7 +24,7 @@ public class WorkQueue {
 	private final Worker[] workers;
 
 	/** Queue of pending work requests. */
-	private final LinkedList<Runnable> queue;
+	private final LinkedList<Task> queue;
 
 	/** Used to signal the queue should be shutdown. */
 	private volatile boolean shutdown;
@@ -35,6 +35,9 @@ public class WorkQueue {
 	/** Keeps track of the number of tasks **/
 	private int num;
 
+	/** Wait time, run time and queue depth metrics. */
+	private final WorkQueueMetrics metrics;
+
 	/** Logger used for this class. */
 	private static final Logger log = LogManager.getLogger();
 	
@@ -53,8 +56,9 @@ public class WorkQueue {
 	 * @param threads number of worker threads; should be greater than 1
 	 */
 	public WorkQueue(int threads) {
-		this.queue = new LinkedList<Runnable>();
+		this.queue = new LinkedList<Task>();
 		this.workers = new Worker[threads];
+		this.metrics = new WorkQueueMetrics();
 		shutdown = false;
 		this.num = 0;
 
@@ -73,8 +77,10 @@ public class WorkQueue {
 	 */
 	public void execute(Runnable task) {
 		addTask();
+		Task pending = new Task(task);
 		synchronized (queue) {
-			queue.addLast(task);
+			queue.addLast(pending);
+			metrics.queued(queue.size());
 			queue.notifyAll();
 		}
 	}
@@ -138,6 +144,28 @@ public class WorkQueue {
 	public int size() {
 		return workers.length;
 	}
+
+	/**
+	 * Returns a snapshot of the queue depth, wait times, run times per task
+	 * class, and how busy each worker has been.
+	 *
+	 * @return snapshot of the work queue metrics
+	 */
+	public WorkQueueMetrics.Snapshot metrics() {
+		int depth;
+		synchronized (queue) {
+			depth = queue.size();
+		}
+
+		long now = System.nanoTime();
+		double[] busy = new double[workers.length];
+
+		for(int i = 0; i < workers.length; i++) {
+			long alive = now - workers[i].started;
+			busy[i] = alive > 0 ? (double) workers[i].busy / alive : 0;
+		}
+		return metrics.snapshot(depth, busy);
+	}
 	
 	/**
 	 *  Adds a task to the queue
@@ -157,6 +185,27 @@ public class WorkQueue {
 		}
 	}
 
+	/**
+	 * A work request along with the time it was queued.
+	 */
+	private static class Task {
+		/** The work to run. */
+		private final Runnable runnable;
+
+		/** When the work was queued, from {@link System#nanoTime()}. */
+		private final long queued;
+
+		/**
+		 * Initializes a work request queued now.
+		 *
+		 * @param runnable the work to run
+		 */
+		public Task(Runnable runnable) {
+			this.runnable = runnable;
+			this.queued = System.nanoTime();
+		}
+	}
+
 	/**
 	 * Waits until work is available in the work queue. When work is found, will
 	 * remove the work from the queue and run it. If a shutdown is detected, will
@@ -164,16 +213,24 @@ public class WorkQueue {
 	 * continue running in the background until a shutdown is requested.
 	 */
 	private class Worker extends Thread {
+		/** When this worker was created, from {@link System#nanoTime()}. */
+		private final long started;
+
+		/** Total time this worker has spent running tasks, in nanoseconds. */
+		private volatile long busy;
+
 		/**
 		 * Initializes a worker thread with a custom name.
 		 */
 		public Worker() {
 			setName("Worker" + getName());
+			started = System.nanoTime();
+			busy = 0;
 		}
 
 		@Override
 		public void run() {
-			Runnable task = null;
+			Task task = null;
 
 			while (true) {
 				synchronized (queue) {
@@ -196,15 +253,22 @@ public class WorkQueue {
 						task = queue.removeFirst();
 					}
 				}
+
+				long start = System.nanoTime();
+				metrics.waited(start - task.queued);
+
 				try {
 					log.debug("Work queue worker found work.");
-					task.run();
+					task.runnable.run();
 				}
 				catch (RuntimeException e) {
 					System.err.println("Warning: Work queue encountered an exception while running.");
 					log.catching(Level.DEBUG, e);
 				}
 				finally {
+					long elapsed = System.nanoTime() - start;
+					busy += elapsed;
+					metrics.ran(task.runnable, elapsed);
 					removeTask();
 				}
 			}
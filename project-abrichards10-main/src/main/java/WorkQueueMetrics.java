@@ -0,0 +1,354 @@
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+
+/**
+ * Collects low-overhead metrics for a {@link WorkQueue}: how long tasks wait
+ * in the queue before starting, how long each kind of task runs, how deep the
+ * queue gets, and how busy each worker is.
+ *
+ * @author angelarichards261
+ */
+public class WorkQueueMetrics {
+
+	/** Time tasks spent waiting in the queue before a worker started them */
+	private final Histogram waitTimes;
+
+	/** Run times of tasks, keyed by the simple name of the task class */
+	private final ConcurrentHashMap<String, Histogram> runTimes;
+
+	/** The deepest the queue has been since it was created */
+	private final LongAccumulator peakDepth;
+
+	/**
+	 * Initializes empty metrics
+	 */
+	public WorkQueueMetrics() {
+		this.waitTimes = new Histogram();
+		this.runTimes = new ConcurrentHashMap<>();
+		this.peakDepth = new LongAccumulator(Math::max, 0);
+	}
+
+	/**
+	 * Records the depth of the queue after a task was added
+	 * @param depth the number of tasks waiting in the queue
+	 */
+	public void queued(int depth) {
+		peakDepth.accumulate(depth);
+	}
+
+	/**
+	 * Records how long a task waited before a worker picked it up
+	 * @param nanos the wait time in nanoseconds
+	 */
+	public void waited(long nanos) {
+		waitTimes.record(nanos);
+	}
+
+	/**
+	 * Records how long a task took to run
+	 * @param task the task that ran
+	 * @param nanos the run time in nanoseconds
+	 */
+	public void ran(Runnable task, long nanos) {
+		runTimes.computeIfAbsent(taskName(task), name -> new Histogram()).record(nanos);
+	}
+
+	/**
+	 * Returns the name used to group run times for a task
+	 * @param task the task
+	 * @return the simple name of the class, or the full name for anonymous classes
+	 */
+	public static String taskName(Runnable task) {
+		String name = task.getClass().getSimpleName();
+		return name.isEmpty() ? task.getClass().getName() : name;
+	}
+
+	/**
+	 * Takes a snapshot of the metrics
+	 * @param depth the current number of tasks waiting in the queue
+	 * @param busyRatios the fraction of time each worker has spent running tasks
+	 * @return a snapshot of the metrics
+	 */
+	public Snapshot snapshot(int depth, double[] busyRatios) {
+		TreeMap<String, Histogram.Summary> runs = new TreeMap<>();
+
+		for(var entry : runTimes.entrySet()) {
+			runs.put(entry.getKey(), entry.getValue().summary());
+		}
+		return new Snapshot(depth, peakDepth.get(), waitTimes.summary(), runs, busyRatios.clone());
+	}
+
+	/**
+	 * A lock-free histogram of nanosecond durations with one bucket per power
+	 * of two, so recording a value is a single atomic increment
+	 * @author angelarichards261
+	 */
+	public static class Histogram {
+
+		/** The number of values that fell into each power-of-two bucket */
+		private final AtomicLongArray buckets;
+
+		/** The largest value recorded */
+		private final LongAccumulator max;
+
+		/** The sum of every value recorded */
+		private final LongAccumulator sum;
+
+		/**
+		 * Initializes an empty histogram
+		 */
+		public Histogram() {
+			this.buckets = new AtomicLongArray(Long.SIZE + 1);
+			this.max = new LongAccumulator(Math::max, 0);
+			this.sum = new LongAccumulator(Long::sum, 0);
+		}
+
+		/**
+		 * Records a value
+		 * @param nanos the value in nanoseconds
+		 */
+		public void record(long nanos) {
+			long value = Math.max(nanos, 0);
+			buckets.incrementAndGet(Long.SIZE - Long.numberOfLeadingZeros(value));
+			max.accumulate(value);
+			sum.accumulate(value);
+		}
+
+		/**
+		 * Summarizes the values recorded so far. Percentiles are reported as the
+		 * upper bound of the bucket they fall in.
+		 * @return the summary
+		 */
+		public Summary summary() {
+			long[] counts = new long[buckets.length()];
+			long count = 0;
+
+			for(int i = 0; i < counts.length; i++) {
+				counts[i] = buckets.get(i);
+				count += counts[i];
+			}
+			long max = this.max.get();
+			long mean = count == 0 ? 0 : sum.get() / count;
+
+			return new Summary(count, mean, percentile(counts, count, 0.50, max),
+					percentile(counts, count, 0.90, max), percentile(counts, count, 0.99, max), max);
+		}
+
+		/**
+		 * Finds the bucket holding the given percentile
+		 * @param counts the bucket counts
+		 * @param count the total number of values
+		 * @param percentile the percentile between 0 and 1
+		 * @param max the largest value recorded
+		 * @return the upper bound of the bucket, capped by the largest value
+		 */
+		private static long percentile(long[] counts, long count, double percentile, long max) {
+			long rank = (long) Math.ceil(count * percentile);
+			long seen = 0;
+
+			for(int i = 0; i < counts.length; i++) {
+				seen += counts[i];
+				if(seen >= rank && seen > 0) {
+					long upper = i >= Long.SIZE - 1 ? Long.MAX_VALUE : (1L << i) - 1;
+					return Math.min(upper, max);
+				}
+			}
+			return 0;
+		}
+
+		/**
+		 * Immutable summary of a histogram, all values in nanoseconds
+		 * @author angelarichards261
+		 */
+		public static class Summary {
+
+			/** The number of values */
+			private final long count;
+
+			/** The mean value */
+			private final long mean;
+
+			/** The 50th percentile */
+			private final long p50;
+
+			/** The 90th percentile */
+			private final long p90;
+
+			/** The 99th percentile */
+			private final long p99;
+
+			/** The largest value */
+			private final long max;
+
+			/**
+			 * Initializes the summary
+			 * @param count the number of values
+			 * @param mean the mean value
+			 * @param p50 the 50th percentile
+			 * @param p90 the 90th percentile
+			 * @param p99 the 99th percentile
+			 * @param max the largest value
+			 */
+			public Summary(long count, long mean, long p50, long p90, long p99, long max) {
+				this.count = count;
+				this.mean = mean;
+				this.p50 = p50;
+				this.p90 = p90;
+				this.p99 = p99;
+				this.max = max;
+			}
+
+			/**
+			 * Returns the number of values
+			 * @return the count
+			 */
+			public long getCount() {
+				return count;
+			}
+
+			/**
+			 * Returns the mean value
+			 * @return the mean in nanoseconds
+			 */
+			public long getMean() {
+				return mean;
+			}
+
+			/**
+			 * Returns the 50th percentile
+			 * @return the median in nanoseconds
+			 */
+			public long getP50() {
+				return p50;
+			}
+
+			/**
+			 * Returns the 90th percentile
+			 * @return the 90th percentile in nanoseconds
+			 */
+			public long getP90() {
+				return p90;
+			}
+
+			/**
+			 * Returns the 99th percentile
+			 * @return the 99th percentile in nanoseconds
+			 */
+			public long getP99() {
+				return p99;
+			}
+
+			/**
+			 * Returns the largest value
+			 * @return the max in nanoseconds
+			 */
+			public long getMax() {
+				return max;
+			}
+
+			@Override
+			public String toString() {
+				return String.format("count=%d mean=%dns p50=%dns p90=%dns p99=%dns max=%dns",
+						count, mean, p50, p90, p99, max);
+			}
+		}
+	}
+
+	/**
+	 * Immutable snapshot of the metrics of a work queue
+	 * @author angelarichards261
+	 */
+	public static class Snapshot {
+
+		/** The number of tasks waiting when the snapshot was taken */
+		private final int queueDepth;
+
+		/** The deepest the queue has been */
+		private final long peakQueueDepth;
+
+		/** Time tasks waited before starting */
+		private final Histogram.Summary waitTime;
+
+		/** Run times per task class */
+		private final Map<String, Histogram.Summary> runTimes;
+
+		/** Fraction of time each worker spent running tasks */
+		private final double[] busyRatios;
+
+		/**
+		 * Initializes the snapshot
+		 * @param queueDepth the current queue depth
+		 * @param peakQueueDepth the peak queue depth
+		 * @param waitTime the wait time summary
+		 * @param runTimes the run time summaries per task class
+		 * @param busyRatios the busy ratio of each worker
+		 */
+		public Snapshot(int queueDepth, long peakQueueDepth, Histogram.Summary waitTime,
+				Map<String, Histogram.Summary> runTimes, double[] busyRatios) {
+			this.queueDepth = queueDepth;
+			this.peakQueueDepth = peakQueueDepth;
+			this.waitTime = waitTime;
+			this.runTimes = Collections.unmodifiableMap(runTimes);
+			this.busyRatios = busyRatios;
+		}
+
+		/**
+		 * Returns the number of tasks waiting when the snapshot was taken
+		 * @return the queue depth
+		 */
+		public int getQueueDepth() {
+			return queueDepth;
+		}
+
+		/**
+		 * Returns the deepest the queue has been
+		 * @return the peak queue depth
+		 */
+		public long getPeakQueueDepth() {
+			return peakQueueDepth;
+		}
+
+		/**
+		 * Returns how long tasks waited between being queued and starting
+		 * @return the wait time summary
+		 */
+		public Histogram.Summary getWaitTime() {
+			return waitTime;
+		}
+
+		/**
+		 * Returns how long tasks ran, keyed by task class
+		 * @return an unmodifiable map of run time summaries
+		 */
+		public Map<String, Histogram.Summary> getRunTimes() {
+			return runTimes;
+		}
+
+		/**
+		 * Returns the fraction of its lifetime each worker spent running tasks
+		 * @return the busy ratio of each worker
+		 */
+		public double[] getBusyRatios() {
+			return busyRatios.clone();
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder builder = new StringBuilder();
+			builder.append(String.format("queue depth=%d peak=%d%n", queueDepth, peakQueueDepth));
+			builder.append(String.format("wait: %s%n", waitTime));
+
+			for(var entry : runTimes.entrySet()) {
+				builder.append(String.format("run %s: %s%n", entry.getKey(), entry.getValue()));
+			}
+			for(int i = 0; i < busyRatios.length; i++) {
+				builder.append(String.format("worker %d busy: %.2f%%%n", i, busyRatios[i] * 100));
+			}
+			return builder.toString();
+		}
+	}
+}